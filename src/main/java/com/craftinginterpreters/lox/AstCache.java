@@ -0,0 +1,692 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+// Keeps resolved programs on disk, so running an unchanged script again
+// skips scanning, parsing and resolving. A file is named by a hash of the
+// format version and the script's contents, so an edited script or a newer
+// format just misses. Slots of global variables depend on the order names
+// are first seen in a process, so globals are stored by name and given
+// their slots again when the program is loaded.
+final class AstCache {
+    // Bump whenever the AST or its encoding changes, or the Resolver or
+    // Optimizer output changes. Programs are stored after both have run, so
+    // new folding or pruning rules would otherwise keep serving old trees.
+    private static final int VERSION = 4;
+    private static final int MAGIC = 0x4c4f5843;
+    private static final String SUFFIX = ".loxc";
+
+    private static final int ASSIGN = 1;
+    private static final int BINARY = 2;
+    private static final int CALL = 3;
+    private static final int GET = 4;
+    private static final int GROUPING = 5;
+    private static final int LITERAL = 6;
+    private static final int LOGICAL = 7;
+    private static final int SET = 8;
+    private static final int THIS = 9;
+    private static final int UNARY = 10;
+    private static final int VARIABLE = 11;
+
+    private static final int BLOCK = 1;
+    private static final int CLASS = 2;
+    private static final int EXPRESSION = 3;
+    private static final int FUNCTION = 4;
+    private static final int IF = 5;
+    private static final int PRINT = 6;
+    private static final int RETURN = 7;
+    private static final int VAR = 8;
+    private static final int WHILE = 9;
+    private static final int FOR = 10;
+
+    private static final int NIL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    // Set on a token's type when it carries a symbol.
+    private static final int HAS_SYMBOL = 0x80;
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // The caller parses the same bytes it hashes, so a script edited in
+    // between can't be stored under the old contents' key.
+    String key(byte[] script) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update((byte) VERSION);
+        digest.update(script);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Returns the program stored under the key, or null if there is none
+    // that can be used.
+    List<Stmt> load(String key, Globals globals) {
+        Path file = directory.resolve(key + SUFFIX);
+        if (!Files.isRegularFile(file)) return null;
+
+        try {
+            Decoder decoder = new Decoder(Files.readAllBytes(file), globals);
+            if (decoder.varint() != MAGIC || decoder.varint() != VERSION) {
+                return null;
+            }
+            return decoder.statements();
+        } catch (IOException | RuntimeException e) {
+            // A damaged file only means the script is parsed again.
+            return null;
+        }
+    }
+
+    void store(String key, List<Stmt> program) {
+        Path temp = null;
+        try {
+            Files.createDirectories(directory);
+            // Write under another name first, so a concurrent run never
+            // sees half a file.
+            temp = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temp, new Encoder().encode(program));
+            Files.move(temp, directory.resolve(key + SUFFIX),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException e) {
+            // Caching is only an optimization; the script already ran.
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Slots are stored one up, so that a method's -1 fits, and shifted
+    // left, with the low bit set for a variable in a cell.
+    private static int packSlot(int slot, boolean cell) {
+        return (slot + 1) << 1 | (cell ? 1 : 0);
+    }
+
+    private static int unpackSlot(int packed) {
+        return (packed >> 1) - 1;
+    }
+
+    private static boolean isCell(int packed) {
+        return (packed & 1) != 0;
+    }
+
+    private static class Encoder
+            implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final Map<String, Integer> strings = new HashMap<>();
+        // How many scopes enclose the code being written. Declarations at
+        // depth zero are global.
+        private int depth = 0;
+        private int line = 0;
+
+        byte[] encode(List<Stmt> program) {
+            varint(MAGIC);
+            varint(VERSION);
+            statements(program);
+            return out.toByteArray();
+        }
+
+        private void statements(List<? extends Stmt> statements) {
+            varint(statements.size());
+            for (Stmt statement : statements) statement(statement);
+        }
+
+        private void statement(Stmt stmt) {
+            if (stmt == null) {
+                varint(0);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void expression(Expr expr) {
+            if (expr == null) {
+                varint(0);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void expressions(List<Expr> exprs) {
+            varint(exprs.size());
+            for (Expr expr : exprs) expression(expr);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            varint(ASSIGN);
+            token(expr.name);
+            expression(expr.value);
+            local(expr.depth, expr.slot, expr.cell);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            varint(BINARY);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            varint(CALL);
+            expression(expr.callee);
+            token(expr.paren);
+            expressions(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            varint(GET);
+            expression(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            varint(GROUPING);
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            varint(LITERAL);
+            literal(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            varint(LOGICAL);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            varint(SET);
+            expression(expr.object);
+            token(expr.name);
+            expression(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            varint(THIS);
+            token(expr.keyword);
+            local(expr.depth, expr.slot, false);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            varint(UNARY);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            varint(VARIABLE);
+            token(expr.name);
+            local(expr.depth, expr.slot, expr.cell);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            varint(BLOCK);
+            depth++;
+            statements(stmt.statements);
+            depth--;
+            varint(stmt.slotCount);
+            bool(stmt.inlined);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            varint(CLASS);
+            token(stmt.name);
+            declaration(stmt.slot, stmt.cell);
+            depth++;
+            varint(stmt.methods.size());
+            for (Stmt.Function method : stmt.methods) function(method);
+            depth--;
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            varint(EXPRESSION);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            varint(FOR);
+            depth++;
+            statement(stmt.initializer);
+            expression(stmt.condition);
+            expression(stmt.increment);
+            statement(stmt.body);
+            depth--;
+            varint(stmt.slotCount);
+            bool(stmt.inlined);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            varint(FUNCTION);
+            function(stmt);
+            return null;
+        }
+
+        private void function(Stmt.Function function) {
+            token(function.name);
+            declaration(function.slot, function.cell);
+            depth++;
+            varint(function.params.size());
+            for (Token param : function.params) token(param);
+            statements(function.body);
+            depth--;
+            varint(function.slotCount);
+            varint(function.captures.size());
+            for (Capture capture : function.captures) {
+                varint(capture.depth() + 1);
+                varint(capture.slot());
+            }
+            varint(function.cellParams.length);
+            for (int slot : function.cellParams) varint(slot);
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            varint(IF);
+            expression(stmt.condition);
+            statement(stmt.thenBranch);
+            statement(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            varint(PRINT);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            varint(RETURN);
+            token(stmt.keyword);
+            expression(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            varint(VAR);
+            token(stmt.name);
+            expression(stmt.initializer);
+            declaration(stmt.slot, stmt.cell);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            varint(WHILE);
+            expression(stmt.condition);
+            statement(stmt.body);
+            return null;
+        }
+
+        // A reference's depth, plus its slot unless it is global.
+        private void local(int depth, int slot, boolean cell) {
+            varint(depth + 1);
+            if (depth != -1) varint(packSlot(slot, cell));
+        }
+
+        private void declaration(int slot, boolean cell) {
+            if (depth > 0) varint(packSlot(slot, cell));
+        }
+
+        private void token(Token token) {
+            int type = token.type.ordinal();
+            if (token.symbol != null) type |= HAS_SYMBOL;
+            varint(type);
+            string(token.lexeme);
+            // Tokens mostly follow each other on the same line or the next.
+            int delta = token.line - line;
+            varint((delta << 1) ^ (delta >> 31));
+            line = token.line;
+        }
+
+        private void literal(Object value) {
+            if (value == null) {
+                varint(NIL);
+            } else if (value instanceof Boolean bool) {
+                varint(bool ? TRUE : FALSE);
+            } else if (value instanceof Double number) {
+                varint(NUMBER);
+                number(number);
+            } else {
+                varint(STRING);
+                string(value.toString());
+            }
+        }
+
+        // Each distinct string is written once and then referred to by
+        // its index.
+        private void string(String string) {
+            Integer index = strings.get(string);
+            if (index != null) {
+                varint(index + 1);
+                return;
+            }
+
+            strings.put(string, strings.size());
+            varint(0);
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            out.writeBytes(bytes);
+        }
+
+        private void number(double number) {
+            long bits = Double.doubleToRawLongBits(number);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        }
+
+        private void bool(boolean bool) {
+            out.write(bool ? 1 : 0);
+        }
+
+        private void varint(int value) {
+            while ((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    private static class Decoder {
+        private static final TokenType[] types = TokenType.values();
+
+        private final byte[] in;
+        private int position = 0;
+        private final Globals globals;
+        private final List<String> strings = new ArrayList<>();
+        private int depth = 0;
+        private int line = 0;
+
+        Decoder(byte[] in, Globals globals) {
+            this.in = in;
+            this.globals = globals;
+        }
+
+        List<Stmt> statements() throws IOException {
+            int count = varint();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) statements.add(statement());
+            return statements;
+        }
+
+        private Stmt statement() throws IOException {
+            int tag = varint();
+            switch (tag) {
+                case 0:
+                    return null;
+                case BLOCK: {
+                    depth++;
+                    Stmt.Block stmt = new Stmt.Block(statements());
+                    depth--;
+                    stmt.slotCount = varint();
+                    stmt.inlined = in[position++] != 0;
+                    return stmt;
+                }
+                case CLASS: {
+                    Token name = token();
+                    int slot = declaration(name);
+                    depth++;
+                    int count = varint();
+                    List<Stmt.Function> methods = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) methods.add(function());
+                    depth--;
+                    Stmt.Class stmt = new Stmt.Class(name, methods);
+                    stmt.slot = unpackSlot(slot);
+                    stmt.cell = isCell(slot);
+                    return stmt;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expression());
+                case FOR: {
+                    depth++;
+                    Stmt.For stmt = new Stmt.For(statement(), expression(),
+                            expression(), statement());
+                    depth--;
+                    stmt.slotCount = varint();
+                    stmt.inlined = in[position++] != 0;
+                    return stmt;
+                }
+                case FUNCTION:
+                    return function();
+                case IF:
+                    return new Stmt.If(expression(), statement(), statement());
+                case PRINT:
+                    return new Stmt.Print(expression());
+                case RETURN:
+                    return new Stmt.Return(token(), expression());
+                case VAR: {
+                    Token name = token();
+                    Stmt.Var stmt = new Stmt.Var(name, expression());
+                    int slot = declaration(name);
+                    stmt.slot = unpackSlot(slot);
+                    stmt.cell = isCell(slot);
+                    return stmt;
+                }
+                case WHILE:
+                    return new Stmt.While(expression(), statement());
+                default:
+                    throw new IOException("Bad statement tag " + tag + ".");
+            }
+        }
+
+        private Stmt.Function function() throws IOException {
+            Token name = token();
+            int slot = declaration(name);
+            depth++;
+            int count = varint();
+            List<Token> params = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) params.add(token());
+            List<Stmt> body = statements();
+            depth--;
+
+            Stmt.Function function = new Stmt.Function(name, params, body);
+            function.slot = unpackSlot(slot);
+            function.cell = isCell(slot);
+            function.slotCount = varint();
+            Capture[] captures = new Capture[varint()];
+            for (int i = 0; i < captures.length; i++) {
+                captures[i] = new Capture(varint() - 1, varint());
+            }
+            function.captures = List.of(captures);
+            function.cellParams = new int[varint()];
+            for (int i = 0; i < function.cellParams.length; i++) {
+                function.cellParams[i] = varint();
+            }
+            return function;
+        }
+
+        private Expr expression() throws IOException {
+            int tag = varint();
+            switch (tag) {
+                case 0:
+                    return null;
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(), expression());
+                    expr.depth = varint() - 1;
+                    int slot = slot(expr.depth, expr.name);
+                    expr.slot = unpackSlot(slot);
+                    expr.cell = isCell(slot);
+                    return expr;
+                }
+                case BINARY:
+                    return new Expr.Binary(expression(), token(), expression());
+                case CALL: {
+                    Expr callee = expression();
+                    Token paren = token();
+                    int count = varint();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) arguments.add(expression());
+                    return new Expr.Call(callee, paren, arguments);
+                }
+                case GET:
+                    return new Expr.Get(expression(), token());
+                case GROUPING:
+                    return new Expr.Grouping(expression());
+                case LITERAL:
+                    return new Expr.Literal(literal());
+                case LOGICAL:
+                    return new Expr.Logical(expression(), token(), expression());
+                case SET:
+                    return new Expr.Set(expression(), token(), expression());
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.depth = varint() - 1;
+                    expr.slot = unpackSlot(slot(expr.depth, expr.keyword));
+                    return expr;
+                }
+                case UNARY:
+                    return new Expr.Unary(token(), expression());
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.depth = varint() - 1;
+                    int slot = slot(expr.depth, expr.name);
+                    expr.slot = unpackSlot(slot);
+                    expr.cell = isCell(slot);
+                    return expr;
+                }
+                default:
+                    throw new IOException("Bad expression tag " + tag + ".");
+            }
+        }
+
+        // Slots come back packed, as they are written.
+        private int slot(int depth, Token name) throws IOException {
+            if (depth == -1) return packSlot(globals.slot(name.symbol), false);
+            return varint();
+        }
+
+        private int declaration(Token name) throws IOException {
+            if (depth == 0) return packSlot(globals.slot(name.symbol), false);
+            return varint();
+        }
+
+        private Token token() throws IOException {
+            int type = varint();
+            String lexeme = string();
+            int delta = varint();
+            line += (delta >>> 1) ^ -(delta & 1);
+
+            Symbol symbol = null;
+            if ((type & HAS_SYMBOL) != 0) {
+                symbol = Symbol.of(lexeme);
+                lexeme = symbol.name;
+                type &= ~HAS_SYMBOL;
+            }
+
+            // A literal token's value is spelled out by its lexeme.
+            TokenType tokenType = types[type];
+            Object literal = null;
+            if (tokenType == TokenType.NUMBER) {
+                literal = Double.parseDouble(lexeme);
+            } else if (tokenType == TokenType.STRING) {
+                literal = lexeme.substring(1, lexeme.length() - 1);
+            }
+            return new Token(tokenType, lexeme, literal, line, symbol);
+        }
+
+        private Object literal() throws IOException {
+            int kind = varint();
+            switch (kind) {
+                case NIL: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case NUMBER: return number();
+                case STRING: return string();
+                default:
+                    throw new IOException("Bad literal kind " + kind + ".");
+            }
+        }
+
+        private String string() throws IOException {
+            int index = varint();
+            if (index > 0) return strings.get(index - 1);
+
+            int length = varint();
+            String string = new String(in, position, length,
+                    StandardCharsets.UTF_8);
+            position += length;
+            strings.add(string);
+            return string;
+        }
+
+        private double number() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (in[position++] & 0xff);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        private int varint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in[position++] & 0xff;
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+    }
+}
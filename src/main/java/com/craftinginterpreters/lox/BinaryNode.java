@@ -0,0 +1,215 @@
+package com.craftinginterpreters.lox;
+
+// The executable behaviour of an Expr.Binary, specialized on the operand
+// types the site has actually seen. Every site starts out uninitialized.
+// The first evaluation replaces the node with a variant for the operator
+// and the operand types seen then, such as a number-only add or a string
+// concatenation. If a variant later meets operands its guard does not
+// cover, the site falls back to the generic node for good. So a
+// monomorphic site skips the operator switch and most of the type checks.
+public abstract class BinaryNode {
+    static final BinaryNode UNINITIALIZED = new Uninitialized();
+
+    abstract Object execute(Expr.Binary expr, Object left, Object right);
+
+    private static BinaryNode specialize(Token operator,
+                                         Object left, Object right) {
+        if (operator.type == TokenType.EQUAL_EQUAL) return new Equal();
+        if (operator.type == TokenType.BANG_EQUAL) return new NotEqual();
+
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator.type) {
+                case GREATER: return new NumberGreater();
+                case GREATER_EQUAL: return new NumberGreaterEqual();
+                case LESS: return new NumberLess();
+                case LESS_EQUAL: return new NumberLessEqual();
+                case MINUS: return new NumberSubtract();
+                case PLUS: return new NumberAdd();
+                case SLASH: return new NumberDivide();
+                case STAR: return new NumberMultiply();
+            }
+        }
+
+        if (operator.type == TokenType.PLUS &&
+                Rope.isString(left) && Rope.isString(right)) {
+            return new StringConcat();
+        }
+
+        return new Generic();
+    }
+
+    private static Object rewrite(Expr.Binary expr, BinaryNode node,
+                                  Object left, Object right) {
+        expr.node = node;
+        return node.execute(expr, left, right);
+    }
+
+    private static final class Uninitialized extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return rewrite(expr, specialize(expr.operator, left, right),
+                    left, right);
+        }
+    }
+
+    private abstract static class NumberNode extends BinaryNode {
+        @Override
+        final Object execute(Expr.Binary expr, Object left, Object right) {
+            if (left instanceof Double && right instanceof Double) {
+                return apply((double) left, (double) right);
+            }
+
+            return rewrite(expr, new Generic(), left, right);
+        }
+
+        abstract Object apply(double left, double right);
+    }
+
+    private static final class NumberAdd extends NumberNode {
+        @Override
+        Object apply(double left, double right) {
+            return left + right;
+        }
+    }
+
+    private static final class NumberSubtract extends NumberNode {
+        @Override
+        Object apply(double left, double right) {
+            return left - right;
+        }
+    }
+
+    private static final class NumberMultiply extends NumberNode {
+        @Override
+        Object apply(double left, double right) {
+            return left * right;
+        }
+    }
+
+    private static final class NumberDivide extends NumberNode {
+        @Override
+        Object apply(double left, double right) {
+            return left / right;
+        }
+    }
+
+    private static final class NumberGreater extends NumberNode {
+        @Override
+        Object apply(double left, double right) {
+            return left > right;
+        }
+    }
+
+    private static final class NumberGreaterEqual extends NumberNode {
+        @Override
+        Object apply(double left, double right) {
+            return left >= right;
+        }
+    }
+
+    private static final class NumberLess extends NumberNode {
+        @Override
+        Object apply(double left, double right) {
+            return left < right;
+        }
+    }
+
+    private static final class NumberLessEqual extends NumberNode {
+        @Override
+        Object apply(double left, double right) {
+            return left <= right;
+        }
+    }
+
+    private static final class StringConcat extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            if (Rope.isString(left) && Rope.isString(right)) {
+                return Rope.concat(left, right);
+            }
+
+            return rewrite(expr, new Generic(), left, right);
+        }
+    }
+
+    private static final class Equal extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return isEqual(left, right);
+        }
+    }
+
+    private static final class NotEqual extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            return !isEqual(left, right);
+        }
+    }
+
+    // Handles every operator and operand type, including the errors.
+    private static final class Generic extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right) {
+            switch (expr.operator.type) {
+                case GREATER:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left > (double) right;
+                case GREATER_EQUAL:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left >= (double) right;
+                case LESS:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left < (double) right;
+                case LESS_EQUAL:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left <= (double) right;
+                case BANG_EQUAL:
+                    return !isEqual(left, right);
+                case EQUAL_EQUAL:
+                    return isEqual(left, right);
+                case MINUS:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left - (double) right;
+                case PLUS:
+                    if (left instanceof Double && right instanceof Double) {
+                        return (double) left + (double) right;
+                    }
+
+                    if (Rope.isString(left) && Rope.isString(right)) {
+                        return Rope.concat(left, right);
+                    }
+
+                    throw new RuntimeError(expr.operator,
+                            "Operands must be two numbers or two strings.");
+                case SLASH:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left / (double) right;
+                case STAR:
+                    checkNumberOperands(expr.operator, left, right);
+                    return (double) left * (double) right;
+            }
+
+            // Unreachable.
+            return null;
+        }
+    }
+
+    static void checkNumberOperands(Token operator,
+                                    Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+        // A rope equals a String with the same text.
+        if (a instanceof Rope || b instanceof Rope) {
+            return Rope.isString(a) && Rope.isString(b) &&
+                    a.toString().equals(b.toString());
+        }
+
+        return a.equals(b);
+    }
+}
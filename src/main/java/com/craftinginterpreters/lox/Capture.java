@@ -0,0 +1,8 @@
+package com.craftinginterpreters.lox;
+
+// A variable a closure holds on to, found `depth` environments out from
+// where the closure is made, in `slot`. Methods hold the instance they are
+// bound to first, with a depth of -1, as it is only known when they are
+// bound.
+public record Capture(int depth, int slot) {
+}
@@ -0,0 +1,25 @@
+package com.craftinginterpreters.lox;
+
+// Holds a captured local that is assigned after it is captured, or
+// captured before it has its value, so that the scope declaring it and
+// every closure capturing it see the same variable. Other captured locals
+// are simply copied into the closures. Like an environment slot, a cell
+// keeps a number unboxed.
+final class Cell {
+    Object value;
+    double number;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+
+    Object get() {
+        if (value == Environment.UNBOXED) return number;
+        return value;
+    }
+
+    void setNumber(double number) {
+        this.number = number;
+        this.value = Environment.UNBOXED;
+    }
+}
@@ -0,0 +1,215 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of the class file format for JvmCompiler: a constant pool,
+// bootstrap methods, and a class with a single static method.
+final class ClassFile {
+    private static final int VERSION = 61;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    static final int REF_INVOKE_STATIC = 6;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<int[]> bootstrapMethods = new ArrayList<>();
+
+    int utf8(String value) {
+        return entry("Utf8:" + value, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int integer(int value) {
+        return entry("Integer:" + value, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return entry("Class:" + internalName, out -> {
+            out.writeByte(7);
+            out.writeShort(name);
+        });
+    }
+
+    int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        return entry("NameAndType:" + name + ":" + descriptor, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int methodHandle(int kind, int reference) {
+        return entry("MethodHandle:" + kind + ":" + reference, out -> {
+            out.writeByte(15);
+            out.writeByte(kind);
+            out.writeShort(reference);
+        });
+    }
+
+    // A constant computed by a bootstrap method the first time it is loaded.
+    int dynamic(int bootstrapMethod, String name, String descriptor) {
+        return bootstrapped(17, bootstrapMethod, name, descriptor);
+    }
+
+    int invokeDynamic(int bootstrapMethod, String name, String descriptor) {
+        return bootstrapped(18, bootstrapMethod, name, descriptor);
+    }
+
+    int bootstrapMethod(int methodHandle, int... arguments) {
+        int[] entry = new int[arguments.length + 1];
+        entry[0] = methodHandle;
+        System.arraycopy(arguments, 0, entry, 1, arguments.length);
+
+        for (int i = 0; i < bootstrapMethods.size(); i++) {
+            if (Arrays.equals(bootstrapMethods.get(i), entry)) return i;
+        }
+        bootstrapMethods.add(entry);
+        return bootstrapMethods.size() - 1;
+    }
+
+    byte[] toByteArray(String className, String methodName,
+                       String methodDescriptor, byte[] code,
+                       int maxStack, int maxLocals, byte[] stackMapTable,
+                       int frameCount) {
+        int thisClass = classRef(className);
+        int superClass = classRef("java/lang/Object");
+        int nameIndex = utf8(methodName);
+        int descriptorIndex = utf8(methodDescriptor);
+        int codeName = utf8("Code");
+        int stackMapName = utf8("StackMapTable");
+        int bootstrapName = utf8("BootstrapMethods");
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+
+            pool.flush();
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // Interfaces.
+            out.writeShort(0); // Fields.
+
+            out.writeShort(1); // Methods.
+            out.writeShort(ACC_PUBLIC | ACC_STATIC);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1); // Method attributes.
+
+            boolean hasFrames = frameCount > 0;
+            int stackMapLength = hasFrames ? 6 + 2 + stackMapTable.length : 0;
+            out.writeShort(codeName);
+            out.writeInt(2 + 2 + 4 + code.length + 2 + 2 + stackMapLength);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // Exception table.
+            out.writeShort(hasFrames ? 1 : 0);
+            if (hasFrames) {
+                out.writeShort(stackMapName);
+                out.writeInt(2 + stackMapTable.length);
+                out.writeShort(frameCount);
+                out.write(stackMapTable);
+            }
+
+            out.writeShort(1); // Class attributes.
+            out.writeShort(bootstrapName);
+            int length = 2;
+            for (int[] method : bootstrapMethods) {
+                length += 4 + 2 * (method.length - 1);
+            }
+            out.writeInt(length);
+            out.writeShort(bootstrapMethods.size());
+            for (int[] method : bootstrapMethods) {
+                out.writeShort(method[0]);
+                out.writeShort(method.length - 1);
+                for (int i = 1; i < method.length; i++) {
+                    out.writeShort(method[i]);
+                }
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, EntryWriter writer) {
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+
+        try {
+            writer.write(pool);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount++;
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    private int memberRef(int tag, String owner, String name,
+                          String descriptor) {
+        int classIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        return entry("Ref" + tag + ":" + owner + "." + name + ":" + descriptor,
+                out -> {
+                    out.writeByte(tag);
+                    out.writeShort(classIndex);
+                    out.writeShort(nameAndType);
+                });
+    }
+
+    private int bootstrapped(int tag, int bootstrapMethod, String name,
+                             String descriptor) {
+        int nameAndType = nameAndType(name, descriptor);
+        return entry("Bootstrapped" + tag + ":" + bootstrapMethod + ":" +
+                name + ":" + descriptor, out -> {
+            out.writeByte(tag);
+            out.writeShort(bootstrapMethod);
+            out.writeShort(nameAndType);
+        });
+    }
+}
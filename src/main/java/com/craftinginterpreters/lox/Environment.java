@@ -1,48 +1,18 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
 class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    // Stored in values for a slot whose number lives unboxed in numbers.
+    static final Object UNBOXED = new Object();
 
-    Environment() {
-        enclosing = null;
-    }
+    // Not final so that LoxFunction can reuse a call's frame.
+    Environment enclosing;
+    final Object[] values;
+    // Allocated by the first setNumber().
+    double[] numbers;
 
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
-    }
-
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
-    }
-
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
-    }
-
-    void define(String name, Object value) {
-        values.put(name, value);
+        this.values = new Object[size];
     }
 
     Environment ancestor(int distance) {
@@ -54,11 +24,24 @@ class Environment {
         return environment;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    // Reads a slot as an object, boxing an unboxed number.
+    Object get(int slot) {
+        Object value = values[slot];
+        if (value == UNBOXED) return numbers[slot];
+        return value;
+    }
+
+    void setNumber(int slot, double value) {
+        if (numbers == null) numbers = new double[values.length];
+        numbers[slot] = value;
+        values[slot] = UNBOXED;
+    }
+
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).get(slot);
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).values[slot] = value;
     }
 }
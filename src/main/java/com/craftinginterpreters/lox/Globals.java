@@ -0,0 +1,55 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class Globals {
+    // Marks a slot whose name has been seen by the resolver but not yet
+    // defined at runtime, so forward references fail only when executed.
+    private static final Object UNDEFINED = new Object();
+
+    // The slot of each name defined or referred to so far.
+    private final Map<Symbol, Integer> slots = new HashMap<>();
+    private Object[] values = new Object[0];
+
+    public int slot(Symbol name) {
+        Integer existing = slots.get(name);
+        if (existing != null) return existing;
+
+        int slot = slots.size();
+        if (slot == values.length) {
+            int oldLength = values.length;
+            values = Arrays.copyOf(values, Math.max(16, oldLength * 2));
+            Arrays.fill(values, oldLength, values.length, UNDEFINED);
+        }
+        slots.put(name, slot);
+        return slot;
+    }
+
+    public Object get(int slot, Token name) {
+        Object value = values[slot];
+        if (value != UNDEFINED) return value;
+
+        throw new RuntimeError(name,
+                "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    public void assign(int slot, Token name, Object value) {
+        if (values[slot] != UNDEFINED) {
+            values[slot] = value;
+            return;
+        }
+
+        throw new RuntimeError(name,
+                "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    public void define(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    public void define(String name, Object value) {
+        define(slot(Symbol.of(name)), value);
+    }
+}
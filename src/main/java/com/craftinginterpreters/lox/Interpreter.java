@@ -1,17 +1,63 @@
 package com.craftinginterpreters.lox;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
 
 class Interpreter implements Expr.Visitor<Object>,
-        Stmt.Visitor<Void> {
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+        Stmt.Visitor<Object> {
+    // Returned by statements that complete normally. Anything else is the
+    // value of a return statement unwinding to the enclosing call.
+    static final Object NORMAL = new Object();
+    // Returned by a return statement whose value is the unboxed number in
+    // returnedNumber.
+    static final Object NUMBER = new Object();
+    // Returned by a return statement whose value is a call to a Lox
+    // function. The call is left in tailFunction and tailFrame for
+    // LoxFunction to make once the frame returning it is gone, so tail
+    // calls don't use up the Java stack.
+    static final Object TAIL_CALL = new Object();
+
+    // A NaN that arithmetic never produces, returned by evaluateNumber()
+    // for values that aren't numbers.
+    private static final long NOT_NUMBER_BITS = 0x7ff8_dead_0000_0000L;
+    private static final double NOT_NUMBER =
+            Double.longBitsToDouble(NOT_NUMBER_BITS);
+
+    final Globals globals = new Globals();
+    // The innermost local scope, or null while running top-level code.
+    private Environment environment = null;
+    // Calls after which a function is compiled to JVM bytecode, or -1 to
+    // stay in the tree-walker.
+    final int compileThreshold;
+    // Where print statements write.
+    final PrintStream out;
+
+    // The value of the last evaluateNumber() that returned NOT_NUMBER.
+    private Object nonNumber;
+    private double returnedNumber;
+    private LoxFunction tailFunction;
+    private Environment tailFrame;
+    private boolean tailIsMethod;
 
     Interpreter() {
+        this(-1);
+    }
+
+    Interpreter(int compileThreshold) {
+        this(compileThreshold, System.out);
+    }
+
+    Interpreter(PrintStream out) {
+        this(-1, out);
+    }
+
+    Interpreter(int compileThreshold, PrintStream out) {
+        this.compileThreshold = compileThreshold;
+        this.out = out;
         globals.define("clock", new LoxCallable() {
             @Override
             public int arity() {
@@ -59,55 +105,170 @@ class Interpreter implements Expr.Visitor<Object>,
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        expr.cache.set((LoxInstance) object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot, false);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
-
-        switch (expr.operator.type) {
-            case BANG:
-                return !isTruthy(right);
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double) right;
+        if (expr.operator.type == TokenType.MINUS) {
+            return -evaluateOperand(expr);
         }
 
-        // Unreachable.
-        return null;
+        return !isTruthy(evaluate(expr.right));
+    }
+
+    private double evaluateOperand(Expr.Unary expr) {
+        double right = evaluateNumber(expr.right);
+        if (isNumber(right)) return right;
+        throw new RuntimeError(expr.operator, "Operand must be a number.");
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot, expr.cell);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, int depth, int slot,
+                                  boolean cell) {
+        if (depth != -1) {
+            Object value = environment.getAt(depth, slot);
+            return cell ? ((Cell) value).get() : value;
         } else {
-            return globals.get(name);
+            return globals.get(slot, name);
+        }
+    }
+
+    // Evaluates an expression without boxing a numeric result. A value that
+    // isn't a number comes back as NOT_NUMBER and is left in nonNumber.
+    private double evaluateNumber(Expr expr) {
+        if (expr instanceof Expr.Variable variable && variable.depth != -1) {
+            Environment scope = environment.ancestor(variable.depth);
+            Object value = scope.values[variable.slot];
+            if (value == Environment.UNBOXED) {
+                return scope.numbers[variable.slot];
+            }
+            if (variable.cell) {
+                Cell cell = (Cell) value;
+                if (cell.value == Environment.UNBOXED) return cell.number;
+                return unbox(cell.value);
+            }
+            return unbox(value);
+        } else if (expr instanceof Expr.Literal literal &&
+                literal.value instanceof Double value) {
+            return value;
+        } else if (expr instanceof Expr.Binary binary) {
+            return evaluateNumber(binary);
+        } else if (expr instanceof Expr.Call call) {
+            Object result = call(call, false);
+            if (result == NUMBER) return returnedNumber;
+            return unbox(result);
+        } else if (expr instanceof Expr.Assign assign && assign.depth != -1) {
+            double value = evaluateNumber(assign.value);
+            Environment scope = environment.ancestor(assign.depth);
+            if (assign.cell) {
+                Cell cell = (Cell) scope.values[assign.slot];
+                if (isNumber(value)) {
+                    cell.setNumber(value);
+                } else {
+                    cell.value = nonNumber;
+                }
+            } else if (isNumber(value)) {
+                scope.setNumber(assign.slot, value);
+            } else {
+                scope.values[assign.slot] = nonNumber;
+            }
+            return value;
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return evaluateNumber(grouping.expression);
+        } else if (expr instanceof Expr.Unary unary &&
+                unary.operator.type == TokenType.MINUS) {
+            return -evaluateOperand(unary);
         }
+
+        return unbox(evaluate(expr));
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
+    private double evaluateNumber(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case PLUS, MINUS, STAR, SLASH -> {
+            }
+            default -> {
+                return unbox(visitBinaryExpr(expr));
+            }
+        }
+
+        double left = evaluateNumber(expr.left);
+        if (!isNumber(left)) {
+            Object leftValue = nonNumber;
+            return unbox(expr.node.execute(expr, leftValue,
+                    evaluate(expr.right)));
+        }
+
+        double right = evaluateNumber(expr.right);
+        if (!isNumber(right)) {
+            return unbox(expr.node.execute(expr, left, nonNumber));
+        }
+
+        return switch (expr.operator.type) {
+            case PLUS -> left + right;
+            case MINUS -> left - right;
+            case STAR -> left * right;
+            default -> left / right;
+        };
     }
 
-    private void checkNumberOperands(Token operator,
-                                     Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
+    private double unbox(Object value) {
+        if (value instanceof Double number) return number;
+        nonNumber = value;
+        return NOT_NUMBER;
+    }
 
-        throw new RuntimeError(operator, "Operands must be numbers.");
+    private static boolean isNumber(double value) {
+        return Double.doubleToRawLongBits(value) != NOT_NUMBER_BITS;
+    }
+
+    // Boxes a result of evaluateNumber(). This is where a number escapes.
+    private Object asObject(double value) {
+        if (isNumber(value)) return value;
+        return nonNumber;
+    }
+
+    // The value a call produced, given the completion of its body.
+    Object returned(Object result) {
+        if (result == NUMBER) return returnedNumber;
+        return result;
+    }
+
+    private void define(int slot, Object value) {
+        // Declarations outside of any block or function are global.
+        if (environment != null) {
+            environment.values[slot] = value;
+        } else {
+            globals.define(slot, value);
+        }
+    }
+
+    // The captured values and cells of a new closure of the function, or
+    // null if it captures nothing.
+    private Environment capture(Stmt.Function function) {
+        List<Capture> captures = function.captures;
+        if (captures.isEmpty()) return null;
+
+        Environment closure = new Environment(null, captures.size());
+        for (int i = 0; i < captures.size(); i++) {
+            Capture capture = captures.get(i);
+            // The instance a method is bound to is filled in by bind().
+            if (capture.depth() == -1) continue;
+            closure.values[i] = environment.getAt(capture.depth(),
+                    capture.slot());
+        }
+        return closure;
     }
 
     private boolean isTruthy(Object object) {
@@ -116,14 +277,7 @@ class Interpreter implements Expr.Visitor<Object>,
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null) return false;
-
-        return a.equals(b);
-    }
-
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -146,199 +300,361 @@ class Interpreter implements Expr.Visitor<Object>,
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    void resolve(Expr expr, int depth, int slot) {
+        if (expr instanceof Expr.Variable variable) {
+            variable.depth = depth;
+            variable.slot = slot;
+        } else if (expr instanceof Expr.Assign assign) {
+            assign.depth = depth;
+            assign.slot = slot;
+        } else if (expr instanceof Expr.This thisExpr) {
+            thisExpr.depth = depth;
+            thisExpr.slot = slot;
+        }
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.inlined) {
+            // Its locals have slots in the enclosing environment.
+            for (Stmt statement : stmt.statements) {
+                Object result = execute(statement);
+                if (result != NORMAL) return result;
+            }
+            return NORMAL;
+        }
+
+        return executeBlock(stmt.statements,
+                new Environment(environment, stmt.slotCount));
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-        environment.define(stmt.name.lexeme, null);
+    public Object visitClassStmt(Stmt.Class stmt) {
+        // Methods that refer to the class capture its cell before it has
+        // the class in it.
+        Cell cell = stmt.cell ? new Cell(null) : null;
+        define(stmt.slot, cell);
 
-        Map<String, LoxFunction> methods = new HashMap<>();
+        Map<Symbol, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment,
-                    method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, capture(method),
+                    method.name.symbol == Symbol.INIT);
+            methods.put(method.name.symbol, function);
         }
 
         LoxClass klass = new LoxClass(stmt.name.lexeme, methods);
-        environment.assign(stmt.name, klass);
-        return null;
+        if (cell != null) {
+            cell.value = klass;
+        } else {
+            define(stmt.slot, klass);
+        }
+        return NORMAL;
     }
 
-    void executeBlock(List<Stmt> statements,
-                      Environment environment) {
+    Object executeBlock(List<Stmt> statements,
+                        Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                Object result = execute(statement);
+                if (result != NORMAL) return result;
             }
+            return NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
-        return null;
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
+        // Keeps a number assigned to a local from being boxed.
+        evaluateNumber(stmt.expression);
+        return NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Object visitForStmt(Stmt.For stmt) {
+        // The loop's own scope is made once, not once per iteration, and
+        // not at all when it is inlined.
+        Environment previous = this.environment;
+        try {
+            if (!stmt.inlined) {
+                this.environment = new Environment(previous, stmt.slotCount);
+            }
+            if (stmt.initializer != null) execute(stmt.initializer);
+
+            while (stmt.condition == null ||
+                    isTruthy(evaluate(stmt.condition))) {
+                checkInterrupted();
+                Object result = execute(stmt.body);
+                if (result != NORMAL) return result;
+
+                if (stmt.increment != null) evaluateNumber(stmt.increment);
+            }
+            return NORMAL;
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    @Override
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        if (!stmt.cell) {
+            define(stmt.slot, new LoxFunction(stmt, capture(stmt), false));
+            return NORMAL;
+        }
+
+        // A recursive function captures its own cell.
+        Cell cell = new Cell(null);
+        define(stmt.slot, cell);
+        cell.value = new LoxFunction(stmt, capture(stmt), false);
+        return NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
-        return null;
+        out.println(stringify(value));
+        return NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
-        Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return null;
+        if (stmt.value instanceof Expr.Call call) return call(call, true);
+
+        double value = evaluateNumber(stmt.value);
+        if (!isNumber(value)) return nonNumber;
 
-        throw new Return(value);
+        returnedNumber = value;
+        return NUMBER;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
+        if (stmt.cell) {
+            Object value = stmt.initializer == null
+                    ? null : evaluate(stmt.initializer);
+            define(stmt.slot, new Cell(value));
+            return NORMAL;
+        }
+
         Object value = null;
         if (stmt.initializer != null) {
-            value = evaluate(stmt.initializer);
+            double number = evaluateNumber(stmt.initializer);
+            // Globals live in a table of objects, but locals keep numbers
+            // unboxed.
+            if (isNumber(number) && environment != null) {
+                environment.setNumber(stmt.slot, number);
+                return NORMAL;
+            }
+            value = asObject(number);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.slot, value);
+        return NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Object visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            checkInterrupted();
+            Object result = execute(stmt.body);
+            if (result != NORMAL) return result;
         }
-        return null;
+        return NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
+        // Locals go through evaluateNumber(), which does the store.
+        if (expr.depth != -1) return asObject(evaluateNumber(expr));
+
         Object value = evaluate(expr.value);
+        globals.assign(expr.slot, expr.name, value);
+        return value;
+    }
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
-        } else {
-            globals.assign(expr.name, value);
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        double left = evaluateNumber(expr.left);
+        if (!isNumber(left)) {
+            Object leftValue = nonNumber;
+            return expr.node.execute(expr, leftValue, evaluate(expr.right));
         }
 
-        return value;
+        double right = evaluateNumber(expr.right);
+        if (!isNumber(right)) return expr.node.execute(expr, left, nonNumber);
+
+        return switch (expr.operator.type) {
+            case PLUS -> left + right;
+            case MINUS -> left - right;
+            case STAR -> left * right;
+            case SLASH -> left / right;
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            // The same as Double.equals(), which BinaryNode uses.
+            case EQUAL_EQUAL -> Double.doubleToLongBits(left) ==
+                    Double.doubleToLongBits(right);
+            default -> Double.doubleToLongBits(left) !=
+                    Double.doubleToLongBits(right);
+        };
     }
 
     @Override
-    public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+    public Object visitCallExpr(Expr.Call expr) {
+        return returned(call(expr, false));
+    }
 
-        switch (expr.operator.type) {
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left > (double) right;
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left >= (double) right;
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left < (double) right;
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left <= (double) right;
-            case BANG_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
-            case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
+    // Performs a call, returning NUMBER if the callee's body returned an
+    // unboxed number. A tail call to a Lox function is only prepared, and
+    // TAIL_CALL returned in its place.
+    private Object call(Expr.Call expr, boolean tail) {
+        checkInterrupted();
+        try {
+            int count = expr.arguments.size();
+            Object callee;
+            if (expr.callee instanceof Expr.Get get) {
+                // Invoke methods directly instead of binding them first.
+                LoxInstance instance = evaluateInstance(get);
+                LoxFunction method = get.cache.method(instance, get.name);
+                if (method != null && method.arity() == count) {
+                    Environment frame = method.frame(instance);
+                    evaluateArguments(expr, frame);
+                    if (tail) return tailCall(method, frame, true);
+                    return method.invokeMethod(this, frame);
+                } else if (method != null) {
+                    callee = method.bind(instance);
+                } else {
+                    callee = get.cache.get(instance, get.name);
                 }
+            } else {
+                callee = evaluate(expr.callee);
+            }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
-                }
+            // Arguments go straight into the callee's frame, or to a
+            // fixed-arity entry point, whenever the arity matches.
+            if (callee instanceof LoxFunction function &&
+                    function.arity() == count) {
+                Environment frame = function.frame();
+                evaluateArguments(expr, frame);
+                if (tail) return tailCall(function, frame, false);
+                return function.invoke(this, frame);
+            }
+
+            if (callee instanceof LoxCallable function &&
+                    function.arity() == count && count <= 2) {
+                if (count == 0) return function.call0(this);
+
+                Object a = evaluate(expr.arguments.get(0));
+                if (count == 1) return function.call1(this, a);
+                Object b = evaluate(expr.arguments.get(1));
+                return function.call2(this, a, b);
+            }
+
+            List<Object> arguments = evaluateArguments(expr);
 
-                throw new RuntimeError(expr.operator,
-                        "Operands must be two numbers or two strings.");
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
+            if (!(callee instanceof LoxCallable)) {
+                throw new RuntimeError(expr.paren,
+                        "Can only call functions and classes.");
+            }
+
+            LoxCallable function = (LoxCallable) callee;
+            checkArity(function, arguments, expr.paren);
+
+            return function.call(this, arguments);
+        } catch (StackOverflowError error) {
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        } catch (LoxException error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
         }
+    }
 
-        // Unreachable.
-        return null;
+    // Loops and calls check whether the thread running them has been
+    // interrupted, so that a host can stop a script that runs too long.
+    static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Script interrupted.");
+        }
     }
 
-    @Override
-    public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+    Object tailCall(LoxFunction function, Environment frame, boolean method) {
+        tailFunction = function;
+        tailFrame = frame;
+        tailIsMethod = method;
+        return TAIL_CALL;
+    }
+
+    // Makes the calls left by TAIL_CALL completions until one completes
+    // otherwise, returning that completion.
+    Object finishTailCalls(Object result) {
+        while (result == TAIL_CALL) {
+            LoxFunction function = tailFunction;
+            Environment frame = tailFrame;
+            tailFunction = null;
+            tailFrame = null;
+            result = tailIsMethod
+                    ? function.runMethod(this, frame)
+                    : function.run(this, frame);
+        }
+        return result;
+    }
 
+    private void evaluateArguments(Expr.Call expr, Environment frame) {
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            double value = evaluateNumber(expr.arguments.get(i));
+            if (isNumber(value)) {
+                frame.setNumber(i, value);
+            } else {
+                frame.values[i] = nonNumber;
+            }
+        }
+    }
+
+    private List<Object> evaluateArguments(Expr.Call expr) {
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
+        return arguments;
+    }
 
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren,
-                    "Can only call functions and classes.");
-        }
-
-        LoxCallable function = (LoxCallable) callee;
+    private void checkArity(LoxCallable function, List<Object> arguments,
+                            Token paren) {
         if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
+            throw new RuntimeError(paren, "Expected " +
                     function.arity() + " arguments but got " +
                     arguments.size() + ".");
         }
-
-        return function.call(this, arguments);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
+        LoxInstance instance = evaluateInstance(expr);
+        return expr.cache.get(instance, expr.name);
+    }
+
+    private LoxInstance evaluateInstance(Expr.Get expr) {
         Object object = evaluate(expr.object);
-        if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
-        }
+        if (object instanceof LoxInstance instance) return instance;
 
         throw new RuntimeError(expr.name,
                 "Only instances have properties.");
@@ -0,0 +1,666 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Compiles a hot function to a static method on a hidden class. Locals live
+// in JVM local variables, operators call into JvmRuntime, and calls go
+// through invokedynamic sites linked by JvmRuntime.bootstrapCall. Constants
+// and tokens are handed over as class data.
+//
+// Only functions that capture nothing and neither declare functions or
+// classes nor use "this" are compiled; every local they touch is then their
+// own. A tail call to the function itself jumps back to its start, and any
+// other tail call is left to the caller like the Interpreter does.
+final class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String CLASS_NAME =
+            "com/craftinginterpreters/lox/LoxCompiledFunction";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_TYPE = "Ljava/lang/Object;";
+    private static final String TOKEN_TYPE =
+            "Lcom/craftinginterpreters/lox/Token;";
+    private static final String GLOBALS_TYPE =
+            "Lcom/craftinginterpreters/lox/Globals;";
+    private static final String PRINT_STREAM_TYPE = "Ljava/io/PrintStream;";
+    private static final String CACHE_TYPE =
+            "Lcom/craftinginterpreters/lox/PropertyCache;";
+    private static final String CALL_SITE_DESCRIPTOR =
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;" +
+                    "Ljava/lang/invoke/MethodType;I)" +
+                    "Ljava/lang/invoke/CallSite;";
+    private static final String RUNTIME =
+            "com/craftinginterpreters/lox/JvmRuntime";
+
+    // The generated method uses one-byte local indexes and two-byte
+    // branch offsets.
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_CODE = Short.MAX_VALUE;
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int LDC_W = 0x13;
+    private static final int ALOAD = 0x19;
+    private static final int ASTORE = 0x3a;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IF_ACMPNE = 0xa6;
+    private static final int GOTO = 0xa7;
+    private static final int ARETURN = 0xb0;
+    private static final int GETSTATIC = 0xb2;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEDYNAMIC = 0xba;
+
+    private static final int FULL_FRAME = 255;
+    private static final int ITEM_OBJECT = 7;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final class NotCompilable extends RuntimeException {
+        NotCompilable() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Label {
+        int offset = -1;
+        int stack = -1;
+        final List<Integer> jumps = new ArrayList<>();
+    }
+
+    private final ClassFile classFile = new ClassFile();
+    private final List<Object> classData = new ArrayList<>();
+    private final Map<Object, Integer> dataIndexes = new IdentityHashMap<>();
+
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    // Stack depth at each branch target, keyed by code offset.
+    private final Map<Integer, Integer> frames = new TreeMap<>();
+    private int stack = 0;
+    private int maxStack = 0;
+    private boolean reachable = true;
+
+    // Maps each scope's resolver slots to JVM locals, innermost last.
+    private final List<int[]> scopes = new ArrayList<>();
+    private int localCount = 0;
+
+    // The function being compiled, and where its body starts.
+    private final LoxFunction self;
+    private final int arity;
+    private final Label start = new Label();
+
+    private JvmCompiler(Interpreter interpreter, LoxFunction self) {
+        // Bootstrap methods find the interpreter at index 0.
+        constant(interpreter);
+        this.self = self;
+        this.arity = self.arity();
+    }
+
+    // Returns a handle taking the function's arguments and returning its
+    // result, or null if the function can't be compiled.
+    static MethodHandle compile(Interpreter interpreter, LoxFunction self,
+                                Stmt.Function function) {
+        if (function.params.size() >= MAX_LOCALS) return null;
+
+        try {
+            return new JvmCompiler(interpreter, self)
+                    .compileFunction(function);
+        } catch (NotCompilable e) {
+            return null;
+        }
+    }
+
+    private MethodHandle compileFunction(Stmt.Function function) {
+        int[] scope = beginScope(function.slotCount);
+        for (int i = 0; i < function.params.size(); i++) {
+            scope[i] = i;
+        }
+        localCount = function.params.size();
+        for (int i = function.params.size(); i < function.slotCount; i++) {
+            scope[i] = localCount++;
+        }
+
+        bind(start);
+        invokeStatic(RUNTIME, "checkInterrupted", "()V", 0);
+        compile(function.body);
+        if (reachable) {
+            emit(ACONST_NULL, 1);
+            emit(ARETURN, -1);
+        }
+
+        if (localCount > MAX_LOCALS) throw new NotCompilable();
+
+        // Every local gets a value up front so that the verifier can treat
+        // all of them as objects everywhere.
+        ByteArrayOutputStream prologue = new ByteArrayOutputStream();
+        for (int i = function.params.size(); i < localCount; i++) {
+            prologue.write(ACONST_NULL);
+            prologue.write(ASTORE);
+            prologue.write(i);
+        }
+        if (localCount > function.params.size()) maxStack = Math.max(maxStack, 1);
+
+        byte[] body = code.toByteArray();
+        if (prologue.size() + body.length > MAX_CODE) throw new NotCompilable();
+        byte[] method = new byte[prologue.size() + body.length];
+        System.arraycopy(prologue.toByteArray(), 0, method, 0, prologue.size());
+        System.arraycopy(body, 0, method, prologue.size(), body.length);
+
+        MethodType type = MethodType.genericMethodType(function.params.size());
+        byte[] bytes = classFile.toByteArray(CLASS_NAME, "invoke",
+                type.toMethodDescriptorString(), method, maxStack,
+                Math.max(localCount, 1), stackMapTable(prologue.size()),
+                frames.size());
+
+        try {
+            MethodHandles.Lookup lookup = LOOKUP.defineHiddenClassWithClassData(
+                    bytes, Collections.unmodifiableList(classData), true);
+            return lookup.findStatic(lookup.lookupClass(), "invoke", type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void compile(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            // Whatever follows a return is dead and has no stack map frame.
+            if (!reachable) return;
+            statement.accept(this);
+        }
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // An inlined block's locals already have JVM locals in its host.
+        if (stmt.inlined) {
+            compile(stmt.statements);
+            return null;
+        }
+
+        beginLocalScope(stmt.slotCount);
+        compile(stmt.statements);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new NotCompilable();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        Label loop = new Label();
+        Label exit = new Label();
+
+        if (!stmt.inlined) beginLocalScope(stmt.slotCount);
+        if (stmt.initializer != null) compile(stmt.initializer);
+
+        bind(loop);
+        invokeStatic(RUNTIME, "checkInterrupted", "()V", 0);
+        if (stmt.condition != null) {
+            compileCondition(stmt.condition);
+            jump(IFEQ, exit);
+        }
+        compile(stmt.body);
+        if (reachable) {
+            if (stmt.increment != null) {
+                compile(stmt.increment);
+                emit(POP, -1);
+            }
+            jump(GOTO, loop);
+        }
+        bind(exit);
+        if (!stmt.inlined) scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new NotCompilable();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseLabel = new Label();
+        Label end = new Label();
+
+        compileCondition(stmt.condition);
+        jump(IFEQ, elseLabel);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            if (reachable) jump(GOTO, end);
+            bind(elseLabel);
+            compile(stmt.elseBranch);
+            bind(end);
+        } else {
+            bind(elseLabel);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        loadConstant(out(), PRINT_STREAM_TYPE);
+        invokeStatic(RUNTIME, "print",
+                "(" + OBJECT_TYPE + PRINT_STREAM_TYPE + ")V", -2);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value instanceof Expr.Call call) {
+            compileTailCall(call);
+        } else if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(ACONST_NULL, 1);
+        }
+        emit(ARETURN, -1);
+        reachable = false;
+        return null;
+    }
+
+    private void compileTailCall(Expr.Call call) {
+        compile(call.callee);
+
+        if (call.arguments.size() == arity) {
+            // Calling itself, the function starts over with the arguments
+            // as its parameters.
+            Label other = new Label();
+            emit(DUP, 1);
+            loadConstant(self, OBJECT_TYPE);
+            jump(IF_ACMPNE, other);
+            emit(POP, -1);
+            for (Expr argument : call.arguments) {
+                compile(argument);
+            }
+            for (int i = arity - 1; i >= 0; i--) {
+                storeLocal(i);
+            }
+            jump(GOTO, start);
+            bind(other);
+        }
+
+        invokeCall(call, "bootstrapTailCall");
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(ACONST_NULL, 1);
+        }
+        storeLocal(scopes.get(scopes.size() - 1)[stmt.slot]);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label loop = new Label();
+        Label exit = new Label();
+
+        bind(loop);
+        invokeStatic(RUNTIME, "checkInterrupted", "()V", 0);
+        compileCondition(stmt.condition);
+        jump(IFEQ, exit);
+        compile(stmt.body);
+        if (reachable) jump(GOTO, loop);
+        bind(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        if (expr.depth != -1) {
+            emit(DUP, 1);
+            storeLocal(local(expr.depth, expr.slot));
+        } else {
+            loadConstant(globals(), GLOBALS_TYPE);
+            loadInt(expr.slot);
+            loadConstant(expr.name, TOKEN_TYPE);
+            invokeStatic(RUNTIME, "assignGlobal", "(" + OBJECT_TYPE +
+                    GLOBALS_TYPE + "I" + TOKEN_TYPE + ")" + OBJECT_TYPE, -3);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        String helper = switch (expr.operator.type) {
+            case PLUS -> "add";
+            case MINUS -> "subtract";
+            case STAR -> "multiply";
+            case SLASH -> "divide";
+            case GREATER -> "greater";
+            case GREATER_EQUAL -> "greaterEqual";
+            case LESS -> "less";
+            case LESS_EQUAL -> "lessEqual";
+            case EQUAL_EQUAL -> "equal";
+            case BANG_EQUAL -> "notEqual";
+            default -> throw new NotCompilable();
+        };
+
+        if (expr.operator.type == TokenType.EQUAL_EQUAL ||
+                expr.operator.type == TokenType.BANG_EQUAL) {
+            invokeStatic(RUNTIME, helper,
+                    "(" + OBJECT_TYPE + OBJECT_TYPE + ")" + OBJECT_TYPE, -1);
+        } else {
+            loadConstant(expr.operator, TOKEN_TYPE);
+            invokeStatic(RUNTIME, helper, "(" + OBJECT_TYPE + OBJECT_TYPE +
+                    TOKEN_TYPE + ")" + OBJECT_TYPE, -2);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        invokeCall(expr, "bootstrapCall");
+        return null;
+    }
+
+    // Compiles the arguments of a call whose callee is on the stack and
+    // calls it through a site linked by the given JvmRuntime bootstrap.
+    private void invokeCall(Expr.Call expr, String bootstrapName) {
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        int count = expr.arguments.size() + 1;
+        if (count >= MAX_LOCALS) throw new NotCompilable();
+        String descriptor = MethodType.genericMethodType(count)
+                .toMethodDescriptorString();
+
+        int bootstrap = classFile.methodHandle(ClassFile.REF_INVOKE_STATIC,
+                classFile.methodRef(RUNTIME, bootstrapName,
+                        CALL_SITE_DESCRIPTOR));
+        int site = classFile.invokeDynamic(
+                classFile.bootstrapMethod(bootstrap,
+                        classFile.integer(constant(expr.paren))),
+                "call", descriptor);
+        emit(INVOKEDYNAMIC, 1 - count);
+        emitShort(site);
+        emitShort(0);
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        loadConstant(expr.cache, CACHE_TYPE);
+        loadConstant(expr.name, TOKEN_TYPE);
+        invokeStatic(RUNTIME, "getProperty", "(" + OBJECT_TYPE +
+                CACHE_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE, -2);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean value) {
+            emit(GETSTATIC, 1);
+            emitShort(classFile.fieldRef("java/lang/Boolean",
+                    value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;"));
+        } else {
+            loadConstant(expr.value, OBJECT_TYPE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        Label end = new Label();
+
+        compile(expr.left);
+        emit(DUP, 1);
+        invokeStatic(RUNTIME, "isTruthy", "(" + OBJECT_TYPE + ")Z", 0);
+        jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        emit(POP, -1);
+        compile(expr.right);
+        bind(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        loadConstant(expr.name, TOKEN_TYPE);
+        invokeStatic(RUNTIME, "checkInstance",
+                "(" + OBJECT_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE, -1);
+        compile(expr.value);
+        loadConstant(expr.cache, CACHE_TYPE);
+        loadConstant(expr.name, TOKEN_TYPE);
+        invokeStatic(RUNTIME, "setProperty", "(" + OBJECT_TYPE +
+                OBJECT_TYPE + CACHE_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE, -3);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        throw new NotCompilable();
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        if (expr.operator.type == TokenType.BANG) {
+            invokeStatic(RUNTIME, "not",
+                    "(" + OBJECT_TYPE + ")" + OBJECT_TYPE, 0);
+        } else {
+            loadConstant(expr.operator, TOKEN_TYPE);
+            invokeStatic(RUNTIME, "negate",
+                    "(" + OBJECT_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth != -1) {
+            emit(ALOAD, 1);
+            code.write(local(expr.depth, expr.slot));
+        } else {
+            loadConstant(globals(), GLOBALS_TYPE);
+            loadInt(expr.slot);
+            loadConstant(expr.name, TOKEN_TYPE);
+            emit(INVOKEVIRTUAL, -2);
+            emitShort(classFile.methodRef(
+                    "com/craftinginterpreters/lox/Globals", "get",
+                    "(I" + TOKEN_TYPE + ")" + OBJECT_TYPE));
+        }
+        return null;
+    }
+
+    private void compileCondition(Expr condition) {
+        compile(condition);
+        invokeStatic(RUNTIME, "isTruthy", "(" + OBJECT_TYPE + ")Z", 0);
+    }
+
+    private int[] beginScope(int slotCount) {
+        int[] scope = new int[slotCount];
+        scopes.add(scope);
+        return scope;
+    }
+
+    // Starts a scope whose locals each get a fresh JVM local.
+    private void beginLocalScope(int slotCount) {
+        int[] scope = beginScope(slotCount);
+        for (int i = 0; i < scope.length; i++) {
+            scope[i] = localCount++;
+        }
+    }
+
+    private int local(int depth, int slot) {
+        // Anything deeper belongs to an enclosing function.
+        if (depth >= scopes.size()) throw new NotCompilable();
+        return scopes.get(scopes.size() - 1 - depth)[slot];
+    }
+
+    private Globals globals() {
+        return ((Interpreter) classData.get(0)).globals;
+    }
+
+    private PrintStream out() {
+        return ((Interpreter) classData.get(0)).out;
+    }
+
+    private int constant(Object value) {
+        Integer index = dataIndexes.get(value);
+        if (index == null) {
+            index = classData.size();
+            classData.add(value);
+            dataIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    private void loadConstant(Object value, String descriptor) {
+        int bootstrap = classFile.methodHandle(ClassFile.REF_INVOKE_STATIC,
+                classFile.methodRef("java/lang/invoke/MethodHandles",
+                        "classDataAt",
+                        "(Ljava/lang/invoke/MethodHandles$Lookup;" +
+                                "Ljava/lang/String;Ljava/lang/Class;I)" +
+                                OBJECT_TYPE));
+        int index = classFile.dynamic(
+                classFile.bootstrapMethod(bootstrap,
+                        classFile.integer(constant(value))),
+                "_", descriptor);
+        emit(LDC_W, 1);
+        emitShort(index);
+    }
+
+    private void loadInt(int value) {
+        emit(LDC_W, 1);
+        emitShort(classFile.integer(value));
+    }
+
+    private void storeLocal(int local) {
+        emit(ASTORE, -1);
+        code.write(local);
+    }
+
+    private void invokeStatic(String owner, String name, String descriptor,
+                              int effect) {
+        emit(INVOKESTATIC, effect);
+        emitShort(classFile.methodRef(owner, name, descriptor));
+    }
+
+    private void jump(int opcode, Label label) {
+        int offset = code.size();
+        emit(opcode, switch (opcode) {
+            case GOTO -> 0;
+            case IF_ACMPNE -> -2;
+            default -> -1;
+        });
+        if (label.offset != -1) {
+            emitShort(label.offset - offset);
+        } else {
+            label.jumps.add(offset);
+            emitShort(0);
+        }
+        label.stack = stack;
+        if (opcode == GOTO) reachable = false;
+    }
+
+    private void bind(Label label) {
+        label.offset = code.size();
+        if (!label.jumps.isEmpty()) {
+            byte[] bytes = code.toByteArray();
+            for (int jump : label.jumps) {
+                int distance = label.offset - jump;
+                bytes[jump + 1] = (byte) (distance >> 8);
+                bytes[jump + 2] = (byte) distance;
+            }
+            code.reset();
+            code.write(bytes, 0, bytes.length);
+
+            if (!reachable) stack = label.stack;
+            reachable = true;
+        }
+
+        // A label nothing reaches needs no frame; binding it while
+        // reachable records one in case a backward jump targets it.
+        if (reachable) frames.put(label.offset, stack);
+        label.stack = stack;
+    }
+
+    private void emit(int opcode, int effect) {
+        code.write(opcode);
+        stack += effect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void emitShort(int value) {
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    private byte[] stackMapTable(int shift) {
+        int object = classFile.classRef(OBJECT);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int previous = -1;
+            for (Map.Entry<Integer, Integer> frame : frames.entrySet()) {
+                int offset = frame.getKey() + shift;
+                out.writeByte(FULL_FRAME);
+                out.writeShort(offset - previous - 1);
+                out.writeShort(localCount);
+                for (int i = 0; i < localCount; i++) {
+                    out.writeByte(ITEM_OBJECT);
+                    out.writeShort(object);
+                }
+                out.writeShort(frame.getValue());
+                for (int i = 0; i < frame.getValue(); i++) {
+                    out.writeByte(ITEM_OBJECT);
+                    out.writeShort(object);
+                }
+                previous = offset;
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+
+// Operations and call linkage for the classes JvmCompiler generates. Each
+// helper mirrors the tree-walking Interpreter, including its error messages.
+final class JvmRuntime {
+    // A call site that keeps relinking past this many targets is left on the
+    // generic path.
+    private static final int MAX_RELINKS = 8;
+
+    private static final MethodHandle FALLBACK;
+    private static final MethodHandle GENERIC;
+    private static final MethodHandle IS_SAME;
+    private static final MethodHandle TAIL_CALL;
+    private static final MethodHandle FINISH_CALL;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            FALLBACK = lookup.findVirtual(LoxCallSite.class, "fallback",
+                    MethodType.methodType(Object.class, Object[].class));
+            GENERIC = lookup.findVirtual(LoxCallSite.class, "generic",
+                    MethodType.methodType(Object.class, Object[].class));
+            IS_SAME = lookup.findStatic(JvmRuntime.class, "isSame",
+                    MethodType.methodType(boolean.class,
+                            Object.class, Object.class));
+            TAIL_CALL = lookup.findStatic(JvmRuntime.class, "tailCall",
+                    MethodType.methodType(Object.class, Interpreter.class,
+                            Token.class, Object[].class));
+            FINISH_CALL = lookup.findStatic(JvmRuntime.class, "finishCall",
+                    MethodType.methodType(Object.class, Interpreter.class,
+                            Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private JvmRuntime() {
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double a && right instanceof Double b) {
+            return a + b;
+        }
+
+        if (Rope.isString(left) && Rope.isString(right)) {
+            return Rope.concat(left, right);
+        }
+
+        throw new RuntimeError(operator,
+                "Operands must be two numbers or two strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        BinaryNode.checkNumberOperands(operator, left, right);
+        return (double) left - (double) right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        BinaryNode.checkNumberOperands(operator, left, right);
+        return (double) left * (double) right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        BinaryNode.checkNumberOperands(operator, left, right);
+        return (double) left / (double) right;
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+        BinaryNode.checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+        BinaryNode.checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+        BinaryNode.checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+        BinaryNode.checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+    }
+
+    static Object equal(Object left, Object right) {
+        return BinaryNode.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !BinaryNode.isEqual(left, right);
+    }
+
+    static Object negate(Object right, Token operator) {
+        if (right instanceof Double value) return -value;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    static Object not(Object right) {
+        return !isTruthy(right);
+    }
+
+    static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    static void print(Object value, PrintStream out) {
+        out.println(Interpreter.stringify(value));
+    }
+
+    static void checkInterrupted() {
+        Interpreter.checkInterrupted();
+    }
+
+    static Object assignGlobal(Object value, Globals globals, int slot,
+                               Token name) {
+        globals.assign(slot, name, value);
+        return value;
+    }
+
+    static Object getProperty(Object object, PropertyCache cache,
+                              Token name) {
+        if (object instanceof LoxInstance instance) {
+            return cache.get(instance, name);
+        }
+
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static Object checkInstance(Object object, Token name) {
+        if (object instanceof LoxInstance) return object;
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    static Object setProperty(Object object, Object value,
+                              PropertyCache cache, Token name) {
+        cache.set((LoxInstance) object, name, value);
+        return value;
+    }
+
+    // Bootstrap method for every Lox call in generated code. The call site
+    // takes the callee followed by the arguments.
+    static CallSite bootstrapCall(MethodHandles.Lookup lookup, String name,
+                                  MethodType type, int parenIndex)
+            throws IllegalAccessException {
+        Interpreter interpreter =
+                MethodHandles.classDataAt(lookup, "_", Interpreter.class, 0);
+        Token paren =
+                MethodHandles.classDataAt(lookup, "_", Token.class, parenIndex);
+        return new LoxCallSite(interpreter, paren, type);
+    }
+
+    // Bootstrap method for calls in tail position. A Lox function is not
+    // called but left for the caller of the generated method, which gets
+    // Interpreter.TAIL_CALL back.
+    static CallSite bootstrapTailCall(MethodHandles.Lookup lookup,
+                                      String name, MethodType type,
+                                      int parenIndex)
+            throws IllegalAccessException {
+        Interpreter interpreter =
+                MethodHandles.classDataAt(lookup, "_", Interpreter.class, 0);
+        Token paren =
+                MethodHandles.classDataAt(lookup, "_", Token.class, parenIndex);
+        return new ConstantCallSite(
+                MethodHandles.insertArguments(TAIL_CALL, 0, interpreter, paren)
+                        .asCollector(Object[].class, type.parameterCount())
+                        .asType(type));
+    }
+
+    private static Object tailCall(Interpreter interpreter, Token paren,
+                                   Object[] values) {
+        if (values[0] instanceof LoxFunction function &&
+                function.arity() == values.length - 1) {
+            Environment frame = function.frame();
+            System.arraycopy(values, 1, frame.values, 0, values.length - 1);
+            return interpreter.tailCall(function, frame, false);
+        }
+
+        return call(interpreter, paren, values);
+    }
+
+    // The value of a generated method that may have ended in a tail call.
+    private static Object finishCall(Interpreter interpreter, Object result) {
+        return interpreter.returned(interpreter.finishTailCalls(result));
+    }
+
+    private static Object call(Interpreter interpreter, Token paren,
+                               Object[] values) {
+        Object callee = values[0];
+        if (!(callee instanceof LoxCallable function)) {
+            throw new RuntimeError(paren,
+                    "Can only call functions and classes.");
+        }
+
+        int count = values.length - 1;
+        if (count != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                    function.arity() + " arguments but got " +
+                    count + ".");
+        }
+
+        try {
+            return function.call(interpreter,
+                    Arrays.asList(values).subList(1, values.length));
+        } catch (LoxException error) {
+            throw new RuntimeError(paren, error.getMessage());
+        }
+    }
+
+    private static boolean isSame(Object expected, Object actual) {
+        return expected == actual;
+    }
+
+    // A monomorphic inline cache: once the site has seen a compiled
+    // function it calls that function's method directly for as long as the
+    // callee stays the same object.
+    private static final class LoxCallSite extends MutableCallSite {
+        private final Interpreter interpreter;
+        private final Token paren;
+        private final MethodHandle fallback;
+        private int relinks = 0;
+
+        LoxCallSite(Interpreter interpreter, Token paren, MethodType type) {
+            super(type);
+            this.interpreter = interpreter;
+            this.paren = paren;
+            this.fallback = collect(FALLBACK);
+            setTarget(fallback);
+        }
+
+        private Object fallback(Object[] values) throws Throwable {
+            Object callee = values[0];
+            if (callee instanceof LoxFunction function &&
+                    function.arity() == values.length - 1) {
+                MethodHandle compiled = function.compiled();
+                if (compiled != null) {
+                    compiled = MethodHandles.filterReturnValue(compiled,
+                            FINISH_CALL.bindTo(interpreter));
+                    relink(callee, compiled);
+                    return compiled.invokeWithArguments(
+                            Arrays.copyOfRange(values, 1, values.length));
+                }
+            }
+
+            return generic(values);
+        }
+
+        private Object generic(Object[] values) {
+            return call(interpreter, paren, values);
+        }
+
+        private void relink(Object callee, MethodHandle compiled) {
+            if (++relinks > MAX_RELINKS) {
+                setTarget(collect(GENERIC));
+                return;
+            }
+
+            MethodType type = type();
+            MethodHandle test = MethodHandles.dropArguments(
+                    IS_SAME.bindTo(callee), 1,
+                    type.dropParameterTypes(0, 1).parameterList());
+            MethodHandle target =
+                    MethodHandles.dropArguments(compiled, 0, Object.class);
+            setTarget(MethodHandles.guardWithTest(test, target, fallback));
+        }
+
+        private MethodHandle collect(MethodHandle handle) {
+            return handle.bindTo(this)
+                    .asCollector(Object[].class, type().parameterCount())
+                    .asType(type());
+        }
+    }
+}
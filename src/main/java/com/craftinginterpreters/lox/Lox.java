@@ -1,32 +1,173 @@
 package com.craftinginterpreters.lox;
 
+import com.craftinginterpreters.lox.closure.ClosureEngine;
+import com.craftinginterpreters.lox.vm.InterpretResult;
+import com.craftinginterpreters.lox.vm.VM;
+
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    enum Engine {
+        INTERPRETER,
+        VM,
+        CLOSURE,
+        // The tree-walker, compiling hot functions to JVM bytecode.
+        JIT
+    }
+
+    static final int COMPILE_THRESHOLD = 1000;
+    private static final int MEGABYTE = 1 << 20;
+    // The VM keeps its frames on the heap, so its depth limit is set to
+    // match the Java stack of the other engines. A simple recursive function
+    // nests about 850 calls per megabyte of --stack in the tree-walker (more
+    // once the JIT has compiled it), and the VM stops a little short of that,
+    // so a program too deep for the tree-walker is too deep for the VM too.
+    private static final int VM_FRAMES_PER_MEGABYTE = 768;
+
+    static Interpreter interpreter = new Interpreter();
+    private static VM vm = new VM();
+    private static final ClosureEngine closureEngine = new ClosureEngine();
+    private static Engine engine = Engine.INTERPRETER;
+    // Parse the whole script on several threads before running it.
+    private static boolean parallel = false;
+    // Where resolved programs are kept between runs, if anywhere.
+    private static AstCache cache = null;
+    // The Java stack scripts run with, which bounds how deeply they can
+    // recurse other than through tail calls.
+    private static long stackSize = 256L * MEGABYTE;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    // Errors found while parsing on another thread are held here instead of
+    // printed, so they can be reported in source order.
+    static final ThreadLocal<List<String>> deferredErrors = new ThreadLocal<>();
+    // The embedded context running a script on this thread, if any. Its
+    // errors go to its own sink and flags instead of these.
+    static final ThreadLocal<LoxContext> activeContext = new ThreadLocal<>();
 
-    public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runPrompt();
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        int scriptArg = 0;
+        while (scriptArg < args.length && args[scriptArg].startsWith("--")) {
+            String option = args[scriptArg++];
+            if (option.startsWith("--engine=")) {
+                String name = option.substring("--engine=".length());
+                try {
+                    engine = Engine.valueOf(name.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    usage();
+                }
+            } else if (option.equals("--parallel")) {
+                parallel = true;
+            } else if (option.equals("--cache")) {
+                cache = new AstCache(Paths.get(
+                        System.getProperty("user.home"), ".cache", "jlox"));
+            } else if (option.startsWith("--cache=")) {
+                cache = new AstCache(
+                        Paths.get(option.substring("--cache=".length())));
+            } else if (option.startsWith("--stack=")) {
+                try {
+                    stackSize = Long.parseLong(
+                            option.substring("--stack=".length())) * MEGABYTE;
+                } catch (NumberFormatException e) {
+                    usage();
+                }
+                if (stackSize <= 0) usage();
+            } else {
+                usage();
+            }
+        }
+        if (engine == Engine.JIT) {
+            interpreter = new Interpreter(COMPILE_THRESHOLD);
         }
+        vm = new VM(vmFrames(stackSize));
+
+        if (args.length - scriptArg > 1) usage();
+        String script = args.length - scriptArg == 1 ? args[scriptArg] : null;
+
+        // The main thread's stack can't be sized, so scripts get a thread
+        // of their own.
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            if (script != null) {
+                runFile(script);
+            } else {
+                runPrompt();
+            }
+            return null;
+        });
+        new Thread(null, task, "lox", stackSize).start();
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException error) throw error;
+            if (e.getCause() instanceof RuntimeException error) throw error;
+            throw (Error) e.getCause();
+        }
+    }
+
+    // The VM's call depth limit for a given --stack size in bytes.
+    static int vmFrames(long stackSize) {
+        return (int) Math.min(Integer.MAX_VALUE,
+                stackSize / MEGABYTE * VM_FRAMES_PER_MEGABYTE);
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=interpreter|vm|closure|jit] [--parallel] [--cache[=dir]] [--stack=megabytes] [script]");
+        System.exit(64);
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path file = Paths.get(path);
+        String key = null;
+        List<Stmt> program = null;
+        // With a cache, the script is read just once, so the program stored
+        // is the one parsed from the contents that were hashed.
+        byte[] source = null;
+        if (cache != null) {
+            source = Files.readAllBytes(file);
+            key = cache.key(source);
+            List<Stmt> cached = cache.load(key, interpreter.globals);
+            if (cached != null) {
+                runResolved(cached);
+                if (hadRuntimeError) System.exit(70);
+                return;
+            }
+
+            // Keep the resolved program to store once it has run.
+            program = new ArrayList<>();
+        }
+
+        if (parallel) {
+            runParallel(source != null
+                    ? ParallelParser.parse(ByteBuffer.wrap(source))
+                    : ParallelParser.parse(file), program);
+        } else {
+            // Without a cache, the scanner reads the file a chunk at a time,
+            // so the whole source is never held in memory at once.
+            try (Reader reader = new InputStreamReader(source != null
+                    ? new ByteArrayInputStream(source)
+                    : Files.newInputStream(file), StandardCharsets.UTF_8)) {
+                run(reader, program);
+            }
+        }
+
+        // Only a program that was read in full and had no errors is kept.
+        if (program != null && !hadError && !hadRuntimeError) {
+            cache.store(key, program);
+        }
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
@@ -40,17 +181,45 @@ public class Lox {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
+            run(new StringReader(line), null);
+
+            // An error shouldn't keep the next line from running.
+            hadError = false;
+            hadRuntimeError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    static void run(Reader source, List<Stmt> program) {
+        // Each top-level declaration is parsed, resolved and run before the
+        // next one is read. Globals are looked up when they are used, so a
+        // function can still call one that is declared further down.
+        Parser parser = new Parser(new Scanner(source));
+        Resolver resolver = new Resolver(interpreter);
+        Optimizer optimizer = new Optimizer();
+        Stmt statement;
+        while ((statement = parser.nextDeclaration()) != null) {
+            // After a syntax error, the rest is only parsed to report
+            // other syntax errors.
+            if (parser.hadError()) continue;
+
+            resolver.resolve(List.of(statement));
+
+            // After a resolution error, nothing more is run.
+            if (hadError) continue;
+
+            statement = optimizer.optimize(statement);
+            if (statement == null) continue;
+
+            if (program != null) program.add(statement);
+            execute(List.of(statement));
 
-        Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+            // A runtime error ends the program.
+            if (hadRuntimeError) return;
+        }
+    }
 
+    private static void runParallel(List<Stmt> statements,
+                                    List<Stmt> program) {
         // Stop if there was a syntax error.
         if (hadError) return;
 
@@ -60,17 +229,52 @@ public class Lox {
         // Stop if there was a resolution error.
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        statements = new Optimizer().optimize(statements);
+        if (program != null) program.addAll(statements);
+        runResolved(statements);
+    }
+
+    private static void runResolved(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            execute(List.of(statement));
+
+            // A runtime error ends the program.
+            if (hadRuntimeError) return;
+        }
     }
 
-    static void error(int line, String message) {
+    private static void execute(List<Stmt> statements) {
+        switch (engine) {
+            case INTERPRETER -> interpreter.interpret(statements);
+            case VM -> {
+                if (vm.interpret(statements) == InterpretResult.RUNTIME_ERROR) {
+                    hadRuntimeError = true;
+                }
+            }
+            case CLOSURE -> closureEngine.interpret(statements);
+            case JIT -> interpreter.interpret(statements);
+        }
+    }
+
+    public static void error(int line, String message) {
         report(line, "", message);
     }
 
     private static void report(int line, String where,
                                String message) {
-        System.err.println(
-                "[line " + line + "] Error" + where + ": " + message);
+        String error = "[line " + line + "] Error" + where + ": " + message;
+        LoxContext context = activeContext.get();
+        if (context != null) {
+            context.error(error);
+            return;
+        }
+
+        List<String> deferred = deferredErrors.get();
+        if (deferred != null) {
+            deferred.add(error);
+        } else {
+            System.err.println(error);
+        }
         hadError = true;
     }
 
@@ -82,9 +286,16 @@ public class Lox {
         }
     }
 
-    static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
+    public static void runtimeError(RuntimeError error) {
+        String message = error.getMessage() +
+                "\n[line " + error.token.line + "]";
+        LoxContext context = activeContext.get();
+        if (context != null) {
+            context.runtimeError(message);
+            return;
+        }
+
+        System.err.println(message);
         hadRuntimeError = true;
     }
 }
@@ -5,14 +5,16 @@ import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
-    private final Map<String, LoxFunction> methods;
+    // The shape of a new instance, before it has any fields.
+    final Shape shape = new Shape();
+    private final Map<Symbol, LoxFunction> methods;
 
-    LoxClass(String name, Map<String, LoxFunction> methods) {
+    LoxClass(String name, Map<Symbol, LoxFunction> methods) {
         this.name = name;
         this.methods = methods;
     }
 
-    LoxFunction findMethod(String name) {
+    LoxFunction findMethod(Symbol name) {
         if (methods.containsKey(name)) {
             return methods.get(name);
         }
@@ -29,9 +31,9 @@ class LoxClass implements LoxCallable {
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
+        LoxFunction initializer = findMethod(Symbol.INIT);
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.callMethod(interpreter, instance, arguments);
         }
 
         return instance;
@@ -39,7 +41,7 @@ class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
+        LoxFunction initializer = findMethod(Symbol.INIT);
         if (initializer == null) return 0;
         return initializer.arity();
     }
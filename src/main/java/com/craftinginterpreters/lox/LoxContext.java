@@ -0,0 +1,107 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.vm.InterpretResult;
+
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// An isolated interpreter made by LoxEngine. Globals defined by one script
+// stay visible to the next script run in the same context, like lines in
+// the REPL. Errors are written to the context's own error stream. A context
+// runs one script at a time; calls from other threads wait their turn. A
+// native that calls eval() on the context already running it fails its call
+// with a runtime error, since the script would run inside the caller's frame.
+// Interrupting the thread running a script stops it with a
+// CancellationException.
+public final class LoxContext {
+    // Not a monitor, so a virtual thread blocked in a native while holding
+    // it doesn't pin its carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Interpreter interpreter;
+    private final PrintStream err;
+    private boolean hadError = false;
+    private boolean hadRuntimeError = false;
+
+    LoxContext(Interpreter interpreter, PrintStream err) {
+        this.interpreter = interpreter;
+        this.err = err;
+    }
+
+    public void defineNative(String name, int arity, LoxNative function) {
+        lock.lock();
+        try {
+            define(name, new NativeFunction(arity, function));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void define(String name, NativeFunction function) {
+        interpreter.globals.define(name, function);
+    }
+
+    public InterpretResult eval(String source) {
+        return eval(new StringReader(source));
+    }
+
+    public InterpretResult eval(Reader source) {
+        if (lock.isHeldByCurrentThread()) {
+            throw new LoxException(
+                    "Can't run a script in the context that is running it.");
+        }
+
+        lock.lock();
+        // A native may run a script in another context on this thread.
+        LoxContext outer = Lox.activeContext.get();
+        try {
+            hadError = false;
+            hadRuntimeError = false;
+            Lox.activeContext.set(this);
+            run(source);
+
+            if (hadError) return InterpretResult.COMPILE_ERROR;
+            if (hadRuntimeError) return InterpretResult.RUNTIME_ERROR;
+            return InterpretResult.OK;
+        } finally {
+            if (outer != null) {
+                Lox.activeContext.set(outer);
+            } else {
+                Lox.activeContext.remove();
+            }
+            lock.unlock();
+        }
+    }
+
+    // Like Lox.run(), each declaration runs as soon as it is parsed.
+    private void run(Reader source) {
+        Parser parser = new Parser(new Scanner(source));
+        Resolver resolver = new Resolver(interpreter);
+        Optimizer optimizer = new Optimizer();
+        Stmt statement;
+        while ((statement = parser.nextDeclaration()) != null) {
+            if (parser.hadError()) continue;
+
+            resolver.resolve(List.of(statement));
+            if (hadError) continue;
+
+            statement = optimizer.optimize(statement);
+            if (statement == null) continue;
+
+            interpreter.interpret(List.of(statement));
+            if (hadRuntimeError) return;
+        }
+    }
+
+    void error(String message) {
+        err.println(message);
+        hadError = true;
+    }
+
+    void runtimeError(String message) {
+        err.println(message);
+        hadRuntimeError = true;
+    }
+}
@@ -0,0 +1,40 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Runs Lox scripts inside a host program. An engine holds what all of its
+// contexts share: whether hot functions are compiled to JVM bytecode, and
+// the natives the host defines. Every context has its own globals, output
+// and error state, so any number of them can run at once, each on its own
+// thread. The engine itself may be used from any thread.
+public final class LoxEngine {
+    private final int compileThreshold;
+    private final Map<String, NativeFunction> natives =
+            new ConcurrentHashMap<>();
+
+    public LoxEngine() {
+        this(false);
+    }
+
+    public LoxEngine(boolean compile) {
+        this.compileThreshold = compile ? Lox.COMPILE_THRESHOLD : -1;
+    }
+
+    // Defines a global function in every context created from now on.
+    public void defineNative(String name, int arity, LoxNative function) {
+        natives.put(name, new NativeFunction(arity, function));
+    }
+
+    public LoxContext newContext() {
+        return newContext(System.out, System.err);
+    }
+
+    public LoxContext newContext(PrintStream out, PrintStream err) {
+        LoxContext context =
+                new LoxContext(new Interpreter(compileThreshold, out), err);
+        natives.forEach(context::define);
+        return context;
+    }
+}
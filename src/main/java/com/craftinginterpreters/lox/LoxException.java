@@ -0,0 +1,9 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by a host-defined native function to fail the call. The script
+// stops with a runtime error at the call, carrying this message.
+public class LoxException extends RuntimeException {
+    public LoxException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,190 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.vm.InterpretResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs many scripts at once, each in a fresh LoxContext on a virtual thread
+// of its own. A script blocked in a native only parks its virtual thread, so
+// I/O-bound scripts don't tie up platform threads. At most maxConcurrent
+// scripts run at a time; the rest wait for a permit without holding a
+// carrier thread. A script still running when its timeout is up is
+// interrupted, and its future fails with a TimeoutException.
+public final class LoxExecutor implements AutoCloseable {
+    // What a script printed and how it ended. Latency is from submission to
+    // completion, including the wait for a permit.
+    public record Result(InterpretResult status, String output, String errors,
+                         Duration latency) {
+    }
+
+    // Throughput counts completed scripts over the time from the first
+    // submission to the last script ending, so idle time doesn't lower it.
+    public record Statistics(long submitted, long completed, long timedOut,
+                             long failed, int running,
+                             double scriptsPerSecond, Duration meanLatency,
+                             Duration maxLatency) {
+    }
+
+    private final LoxEngine engine;
+    private final int maxConcurrent;
+    private final Semaphore permits;
+    private final Duration timeout;
+    private final ExecutorService threads =
+            Executors.newVirtualThreadPerTaskExecutor();
+    // Interrupts scripts that run past their timeout.
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "lox-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // Times are kept as nanoseconds since the executor was created.
+    private final long origin = System.nanoTime();
+    private final AtomicLong firstSubmission = new AtomicLong(-1);
+    private final LongAccumulator lastEnd = new LongAccumulator(Math::max, -1);
+    private volatile boolean closed = false;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+
+    public LoxExecutor(LoxEngine engine, int maxConcurrent, Duration timeout) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException(
+                    "maxConcurrent must be positive.");
+        }
+
+        this.engine = engine;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent);
+        this.timeout = timeout;
+    }
+
+    public CompletableFuture<Result> submit(String source) {
+        if (closed) {
+            throw new RejectedExecutionException("The executor is closed.");
+        }
+
+        long submittedAt = System.nanoTime();
+        firstSubmission.compareAndSet(-1, submittedAt - origin);
+        submitted.increment();
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        try {
+            threads.execute(() -> run(source, submittedAt, future));
+        } catch (RejectedExecutionException e) {
+            // Closed after the check above.
+            submitted.decrement();
+            throw e;
+        }
+        return future;
+    }
+
+    private void run(String source, long submittedAt,
+                     CompletableFuture<Result> future) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            failed.increment();
+            future.completeExceptionally(e);
+            return;
+        }
+
+        // Set before the interrupt, which can wake the script before the
+        // timer's task counts as done.
+        AtomicBoolean expired = new AtomicBoolean();
+        Thread thread = Thread.currentThread();
+        ScheduledFuture<?> deadline = timer.schedule(() -> {
+            expired.set(true);
+            thread.interrupt();
+        }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        InterpretResult status = null;
+        Throwable error = null;
+        try {
+            LoxContext context = engine.newContext(
+                    new PrintStream(out, true, StandardCharsets.UTF_8),
+                    new PrintStream(err, true, StandardCharsets.UTF_8));
+            status = context.eval(source);
+        } catch (Throwable e) {
+            // Interrupted in Lox code, or a host native failed with
+            // something other than LoxException.
+            error = e;
+        } finally {
+            deadline.cancel(false);
+            permits.release();
+        }
+
+        // A native interrupted while blocked usually fails its call with a
+        // runtime error, so whether the deadline fired decides a timeout,
+        // not how the script ended.
+        Duration latency = finished(submittedAt);
+        Result result = null;
+        if (expired.get()) {
+            timedOut.increment();
+            error = new TimeoutException(
+                    "Script ran longer than " + timeout + ".");
+        } else if (error != null) {
+            failed.increment();
+        } else {
+            completed.increment();
+            result = new Result(status, out.toString(StandardCharsets.UTF_8),
+                    err.toString(StandardCharsets.UTF_8), latency);
+        }
+
+        // Completed last, so the statistics already count this run.
+        if (error != null) {
+            future.completeExceptionally(error);
+        } else {
+            future.complete(result);
+        }
+    }
+
+    private Duration finished(long submittedAt) {
+        long now = System.nanoTime();
+        lastEnd.accumulate(now - origin);
+        long latency = now - submittedAt;
+        totalLatency.add(latency);
+        maxLatency.accumulate(latency);
+        return Duration.ofNanos(latency);
+    }
+
+    public Statistics statistics() {
+        long done = completed.sum();
+        long ended = done + timedOut.sum() + failed.sum();
+        long busy = lastEnd.get() - firstSubmission.get();
+        return new Statistics(submitted.sum(), done, timedOut.sum(),
+                failed.sum(), maxConcurrent - permits.availablePermits(),
+                ended == 0 || busy <= 0 ? 0 : done / (busy / 1e9),
+                Duration.ofNanos(ended == 0 ? 0 : totalLatency.sum() / ended),
+                Duration.ofNanos(maxLatency.get()));
+    }
+
+    // Waits for every submitted script to finish. Scripts submitted after
+    // this are rejected.
+    @Override
+    public void close() {
+        closed = true;
+        threads.close();
+        timer.shutdownNow();
+    }
+}
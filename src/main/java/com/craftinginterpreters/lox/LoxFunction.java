@@ -1,13 +1,46 @@
 package com.craftinginterpreters.lox;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
+    // How many finished frames a function keeps for reuse.
+    private static final int MAX_FREE_FRAMES = 64;
+
+    private static final MethodHandle GET_SLOT;
+
+    static {
+        try {
+            GET_SLOT = MethodHandles.lookup().findVirtual(Environment.class,
+                    "get", MethodType.methodType(Object.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private final Stmt.Function declaration;
+    // What the function captured, or null if it captured nothing. Frames
+    // of calls are enclosed by it.
     private final Environment closure;
 
     private final boolean isInitializer;
 
+    // Frames of finished calls, for reuse. Closures copy what they capture,
+    // so nothing holds on to a frame once its call returns.
+    private Environment[] freeFrames = new Environment[0];
+    private int freeFrameCount = 0;
+
+    // Counts calls until the function is hot enough to compile, or -1 once
+    // it won't be.
+    private int calls = 0;
+    // The JvmCompiler output taking one argument per parameter, and the same
+    // handle reading them from a frame's values.
+    private MethodHandle compiled = null;
+    private MethodHandle compiledEntry = null;
+
     LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
         this.declaration = declaration;
         this.closure = closure;
@@ -15,9 +48,16 @@ class LoxFunction implements LoxCallable {
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, bindThis(instance), isInitializer);
+    }
+
+    // A method's captures start with the instance it is bound to.
+    private Environment bindThis(LoxInstance instance) {
+        Environment environment = new Environment(null, closure.values.length);
+        System.arraycopy(closure.values, 0, environment.values, 0,
+                closure.values.length);
+        environment.values[0] = instance;
+        return environment;
     }
 
     @Override
@@ -30,24 +70,151 @@ class LoxFunction implements LoxCallable {
         return declaration.params.size();
     }
 
+    MethodHandle compiled() {
+        return compiled;
+    }
+
+    // A frame for calling the function. The caller stores the arguments in
+    // the first slots and passes the frame to call().
+    Environment frame() {
+        return frame(closure);
+    }
+
+    // A frame for calling the method on the given instance. The caller
+    // passes it to callMethod().
+    Environment frame(LoxInstance instance) {
+        return frame(bindThis(instance));
+    }
+
+    private Environment frame(Environment enclosing) {
+        if (freeFrameCount == 0) {
+            return new Environment(enclosing, declaration.slotCount);
+        }
+
+        Environment frame = freeFrames[--freeFrameCount];
+        frame.enclosing = enclosing;
+        return frame;
+    }
+
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
-        Environment environment = new Environment(closure);
+        Environment frame = frame();
         for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
+            frame.values[i] = arguments.get(i);
         }
+        return interpreter.returned(invoke(interpreter, frame));
+    }
+
+    // Runs a call with the arguments already in the frame's parameter
+    // slots. Returns the body's completion, which may be Interpreter.NUMBER.
+    Object invoke(Interpreter interpreter, Environment frame) {
+        return interpreter.finishTailCalls(run(interpreter, frame));
+    }
+
+    // Runs the body once, returning Interpreter.TAIL_CALL if it ended in a
+    // tail call. Its frame is released before that call is made.
+    Object run(Interpreter interpreter, Environment frame) {
+        if (compiled == null && calls != -1) countCall(interpreter);
 
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+            if (compiledEntry != null) return callCompiled(frame);
+            return execute(interpreter, frame);
+        } finally {
+            release(frame);
+        }
+    }
 
-            return returnValue.value;
+    // Calls the method on the instance without creating a bound method.
+    Object callMethod(Interpreter interpreter, LoxInstance instance,
+                      List<Object> arguments) {
+        Environment frame = frame(instance);
+        for (int i = 0; i < declaration.params.size(); i++) {
+            frame.values[i] = arguments.get(i);
         }
+        return interpreter.returned(invokeMethod(interpreter, frame));
+    }
 
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+    Object invokeMethod(Interpreter interpreter, Environment frame) {
+        return interpreter.finishTailCalls(runMethod(interpreter, frame));
+    }
+
+    Object runMethod(Interpreter interpreter, Environment frame) {
+        try {
+            return execute(interpreter, frame);
+        } finally {
+            release(frame);
+        }
+    }
+
+    private Object execute(Interpreter interpreter, Environment frame) {
+        for (int slot : declaration.cellParams) {
+            frame.values[slot] = new Cell(frame.get(slot));
+        }
+
+        Object result = interpreter.executeBlock(declaration.body, frame);
+        if (isInitializer) return frame.enclosing.values[0];
+
+        return result == Interpreter.NORMAL ? null : result;
+    }
+
+    private void release(Environment frame) {
+        if (freeFrameCount == freeFrames.length) {
+            if (freeFrameCount == MAX_FREE_FRAMES) return;
+            freeFrames = Arrays.copyOf(freeFrames,
+                    Math.max(4, freeFrameCount * 2));
+        }
+
+        Arrays.fill(frame.values, null);
+        frame.enclosing = null;
+        freeFrames[freeFrameCount++] = frame;
+    }
+
+    private void countCall(Interpreter interpreter) {
+        // Only functions that capture nothing can be compiled.
+        if (interpreter.compileThreshold < 0 || closure != null ||
+                isInitializer) {
+            calls = -1;
+            return;
+        }
+
+        if (++calls < interpreter.compileThreshold) return;
+
+        compiled = JvmCompiler.compile(interpreter, this, declaration);
+        if (compiled == null) {
+            calls = -1;
+            return;
+        }
+        compiledEntry = readingFrame(compiled);
+    }
+
+    // Adapts the compiled method to take its arguments from the leading
+    // slots of a frame. Compiled code works on boxed values, so unboxed
+    // arguments are boxed here.
+    private static MethodHandle readingFrame(MethodHandle compiled) {
+        int arity = compiled.type().parameterCount();
+        if (arity == 0) {
+            return MethodHandles.dropArguments(compiled, 0, Environment.class);
+        }
+
+        MethodHandle[] getters = new MethodHandle[arity];
+        for (int i = 0; i < arity; i++) {
+            getters[i] = MethodHandles.insertArguments(GET_SLOT, 1, i);
+        }
+
+        return MethodHandles.permuteArguments(
+                MethodHandles.filterArguments(compiled, 0, getters),
+                MethodType.methodType(Object.class, Environment.class),
+                new int[arity]);
+    }
+
+    private Object callCompiled(Environment frame) {
+        try {
+            return (Object) compiledEntry.invokeExact(frame);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
     }
 }
@@ -1,22 +1,36 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
+    private static final Object[] NO_VALUES = new Object[0];
+
     private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private Shape shape;
+    private Object[] values = NO_VALUES;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.shape;
+    }
+
+    LoxClass klass() {
+        return klass;
+    }
+
+    Shape shape() {
+        return shape;
+    }
+
+    Object field(int slot) {
+        return values[slot];
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
+        int slot = shape.slot(name.symbol);
+        if (slot != -1) return values[slot];
 
-        LoxFunction method = klass.findMethod(name.lexeme);
+        LoxFunction method = klass.findMethod(name.symbol);
         if (method != null) return method.bind(this);
 
         throw new RuntimeError(name,
@@ -24,7 +38,24 @@ class LoxInstance {
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.slot(name.symbol);
+        if (slot == -1) {
+            store(shape.with(name.symbol), shape.size(), value);
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    // Stores a value in the given slot, moving to the given shape first
+    // when the store adds a field.
+    void store(Shape shape, int slot, Object value) {
+        if (shape != this.shape) {
+            this.shape = shape;
+            if (slot == values.length) {
+                values = Arrays.copyOf(values, Math.max(4, slot * 2));
+            }
+        }
+        values[slot] = value;
     }
 
     @Override
@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// A function the host defines for scripts to call. Arguments arrive as
+// nil (null), Boolean, Double or String; other Lox values such as instances
+// are passed along as they are. A native may return any of those, or any
+// Number, which becomes a Lox number.
+@FunctionalInterface
+public interface LoxNative {
+    Object call(List<Object> arguments);
+}
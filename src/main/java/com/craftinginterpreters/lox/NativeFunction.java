@@ -0,0 +1,41 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Adapts a host's LoxNative to a Lox callable, converting values at the
+// boundary so neither side sees the other's representations.
+final class NativeFunction implements LoxCallable {
+    private final int arity;
+    private final LoxNative function;
+
+    NativeFunction(int arity, LoxNative function) {
+        this.arity = arity;
+        this.function = function;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        List<Object> values = new ArrayList<>(arguments.size());
+        for (Object argument : arguments) {
+            values.add(argument instanceof Rope rope ? rope.toString()
+                    : argument);
+        }
+
+        Object result = function.call(values);
+        if (result instanceof Number number && !(result instanceof Double)) {
+            return number.doubleValue();
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,367 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Simplifies a resolved program before it runs. Operators whose operands
+// are literals are folded, parentheses are dropped, branches and loops with
+// constant conditions are pruned, and statements that follow a return are
+// removed. An operator is only folded when it can't fail, so `"a" - 1` is
+// kept and still reports its error, at its line, when it runs.
+//
+// Nodes are rebuilt only where something changed, carrying over what the
+// resolver stored in them.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt result = optimize(statement);
+            if (result == null) continue;
+
+            optimized.add(result);
+            // Nothing after a return can run.
+            if (alwaysReturns(result)) break;
+        }
+
+        return optimized.equals(statements) ? statements : optimized;
+    }
+
+    // Returns null for a statement that does nothing.
+    Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.cell = expr.cell;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal a && right instanceof Expr.Literal b) {
+            Object value = fold(expr.operator.type, a.value, b.value);
+            if (value != CANT_FOLD) return new Expr.Literal(value);
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    private static final Object CANT_FOLD = new Object();
+
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EQUAL_EQUAL: return BinaryNode.isEqual(left, right);
+            case BANG_EQUAL: return !BinaryNode.isEqual(left, right);
+        }
+
+        if (left instanceof String a && right instanceof String b) {
+            return operator == TokenType.PLUS ? a + b : CANT_FOLD;
+        }
+        if (!(left instanceof Double a) || !(right instanceof Double b)) {
+            return CANT_FOLD;
+        }
+
+        switch (operator) {
+            case PLUS: return a + b;
+            case MINUS: return a - b;
+            case STAR: return a * b;
+            case SLASH: return a / b;
+            case GREATER: return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS: return a < b;
+            case LESS_EQUAL: return a <= b;
+            default: return CANT_FOLD;
+        }
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    private List<Expr> optimizeAll(List<Expr> exprs) {
+        List<Expr> optimized = new ArrayList<>(exprs.size());
+        for (Expr expr : exprs) optimized.add(optimize(expr));
+        return optimized.equals(exprs) ? exprs : optimized;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // Parentheses only matter to the parser.
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        // The result is the left operand if it decides the outcome, and the
+        // right one otherwise.
+        if (left instanceof Expr.Literal literal) {
+            boolean truthy = isTruthy(literal.value);
+            if (expr.operator.type == TokenType.OR) {
+                return truthy ? left : right;
+            }
+            return truthy ? right : left;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (right instanceof Expr.Literal literal) {
+            if (expr.operator.type == TokenType.BANG) {
+                return new Expr.Literal(!isTruthy(literal.value));
+            }
+            if (literal.value instanceof Double number) {
+                return new Expr.Literal(-number);
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+
+        Stmt.Block block = new Stmt.Block(statements);
+        block.slotCount = stmt.slotCount;
+        block.inlined = stmt.inlined;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        for (Stmt.Function method : stmt.methods) {
+            methods.add(function(method));
+        }
+        if (methods.equals(stmt.methods)) return stmt;
+
+        Stmt.Class klass = new Stmt.Class(stmt.name, methods);
+        klass.slot = stmt.slot;
+        klass.cell = stmt.cell;
+        return klass;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        // A literal on its own has no effect.
+        if (expression instanceof Expr.Literal) return null;
+        if (expression == stmt.expression) return stmt;
+
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer =
+                stmt.initializer == null ? null : optimize(stmt.initializer);
+        Expr condition =
+                stmt.condition == null ? null : optimize(stmt.condition);
+        Expr increment =
+                stmt.increment == null ? null : optimize(stmt.increment);
+
+        if (condition instanceof Expr.Literal literal) {
+            if (!isTruthy(literal.value)) {
+                // Only the initializer runs, still in the loop's scope.
+                if (initializer == null) return null;
+
+                Stmt.Block block = new Stmt.Block(List.of(initializer));
+                block.slotCount = stmt.slotCount;
+                block.inlined = stmt.inlined;
+                return block;
+            }
+            condition = null;
+        }
+        if (increment instanceof Expr.Literal) increment = null;
+
+        Stmt body = orEmpty(optimize(stmt.body));
+        if (initializer == stmt.initializer && condition == stmt.condition &&
+                increment == stmt.increment && body == stmt.body) {
+            return stmt;
+        }
+
+        Stmt.For loop = new Stmt.For(initializer, condition, increment, body);
+        loop.slotCount = stmt.slotCount;
+        loop.inlined = stmt.inlined;
+        return loop;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return function(stmt);
+    }
+
+    private Stmt.Function function(Stmt.Function stmt) {
+        List<Stmt> body = optimize(stmt.body);
+        if (body == stmt.body) return stmt;
+
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+        function.slot = stmt.slot;
+        function.slotCount = stmt.slotCount;
+        function.cell = stmt.cell;
+        function.captures = stmt.captures;
+        function.cellParams = stmt.cellParams;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        Stmt thenBranch = optimize(stmt.thenBranch);
+        Stmt elseBranch =
+                stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+
+        if (condition instanceof Expr.Literal literal) {
+            return isTruthy(literal.value) ? thenBranch : elseBranch;
+        }
+
+        if (thenBranch == null && elseBranch == null) {
+            // Only the condition is left to evaluate.
+            return new Stmt.Expression(condition);
+        }
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+                elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, orEmpty(thenBranch), elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.slot = stmt.slot;
+        var.cell = stmt.cell;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal literal &&
+                !isTruthy(literal.value)) {
+            return null;
+        }
+
+        Stmt body = optimize(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+
+        return new Stmt.While(condition, orEmpty(body));
+    }
+
+    // A statement that was optimized away, where one is still needed.
+    private static Stmt orEmpty(Stmt stmt) {
+        if (stmt != null) return stmt;
+
+        // With nothing in it, it needs no environment.
+        Stmt.Block block = new Stmt.Block(List.of());
+        block.inlined = true;
+        return block;
+    }
+
+    private static boolean alwaysReturns(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) return true;
+        if (stmt instanceof Stmt.Block block) {
+            // Optimized lists end at the statement that returns.
+            List<Stmt> statements = block.statements;
+            return !statements.isEmpty() &&
+                    alwaysReturns(statements.get(statements.size() - 1));
+        }
+        if (stmt instanceof Stmt.If ifStmt) {
+            return ifStmt.elseBranch != null &&
+                    alwaysReturns(ifStmt.thenBranch) &&
+                    alwaysReturns(ifStmt.elseBranch);
+        }
+        return false;
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+}
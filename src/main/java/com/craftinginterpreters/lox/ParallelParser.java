@@ -0,0 +1,157 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Parses a large source file on several threads. A quick pass over the raw
+// bytes finds where the file can be cut in front of a top-level `fun` or
+// `class`. The pieces are then decoded, scanned and parsed on a ForkJoinPool
+// and their statements joined back in source order. Each piece's scanner
+// starts at the piece's first line, so tokens get the same lines as they
+// would in a single pass.
+final class ParallelParser {
+    // Smaller pieces aren't worth a task of their own.
+    private static final int MIN_PIECE_SIZE = 64 * 1024;
+    // More pieces than threads, so uneven pieces still keep them all busy.
+    private static final int PIECES_PER_THREAD = 4;
+
+    record Piece(int start, int end, int line) {
+    }
+
+    private record Result(List<Stmt> statements, List<String> errors) {
+    }
+
+    private ParallelParser() {
+    }
+
+    static List<Stmt> parse(Path path) throws IOException {
+        ByteBuffer source;
+        try (FileChannel channel = FileChannel.open(path)) {
+            source = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        return parse(source);
+    }
+
+    static List<Stmt> parse(ByteBuffer source) {
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int pieceSize = Math.max(MIN_PIECE_SIZE,
+                source.limit() / (pool.getParallelism() * PIECES_PER_THREAD));
+
+        List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+        for (Piece piece : split(source, pieceSize)) {
+            tasks.add(pool.submit(() -> parse(source, piece)));
+        }
+
+        List<Stmt> statements = new ArrayList<>();
+        for (ForkJoinTask<Result> task : tasks) {
+            Result result = task.join();
+            for (String error : result.errors) System.err.println(error);
+            statements.addAll(result.statements);
+        }
+        return statements;
+    }
+
+    private static Result parse(ByteBuffer source, Piece piece) {
+        CharBuffer text = StandardCharsets.UTF_8.decode(
+                source.slice(piece.start, piece.end - piece.start));
+
+        // Hold on to errors so they come out in source order.
+        List<String> errors = new ArrayList<>();
+        Lox.deferredErrors.set(errors);
+        try {
+            Parser parser = new Parser(new Scanner(text, piece.line));
+            return new Result(parser.parse(), errors);
+        } finally {
+            Lox.deferredErrors.remove();
+        }
+    }
+
+    // Finds the pieces, keeping track of just enough of the lexical
+    // structure to know when a `fun` or `class` starts a top-level
+    // declaration: strings, comments, and nesting of braces and parentheses.
+    // UTF-8 never uses ASCII byte values inside a multi-byte character, so
+    // the bytes can be looked at without decoding them. If the nesting
+    // doesn't add up, the file is left whole for the parser to report.
+    static List<Piece> split(ByteBuffer source, int pieceSize) {
+        List<Piece> whole = List.of(new Piece(0, source.limit(), 1));
+        List<Piece> pieces = new ArrayList<>();
+        int length = source.limit();
+        int pieceStart = 0;
+        int pieceLine = 1;
+        int line = 1;
+        int depth = 0;
+        byte last = 0;
+
+        for (int i = 0; i < length; i++) {
+            byte c = source.get(i);
+            switch (c) {
+                case '\n' -> line++;
+                case ' ', '\r', '\t' -> {
+                }
+                case '"' -> {
+                    for (i++; i < length && source.get(i) != '"'; i++) {
+                        if (source.get(i) == '\n') line++;
+                    }
+                    if (i == length) return whole;
+                    last = c;
+                }
+                case '/' -> {
+                    if (i + 1 < length && source.get(i + 1) == '/') {
+                        // Stop short of the newline, so it is counted.
+                        while (i + 1 < length && source.get(i + 1) != '\n') i++;
+                    } else {
+                        last = c;
+                    }
+                }
+                case '{', '(' -> {
+                    depth++;
+                    last = c;
+                }
+                case '}', ')' -> {
+                    if (--depth < 0) return whole;
+                    last = c;
+                }
+                default -> {
+                    // Only a token right after a statement has ended at the
+                    // top level can start a declaration.
+                    if (depth == 0 && (last == ';' || last == '}') &&
+                            i - pieceStart >= pieceSize &&
+                            (startsWord(source, i, "fun") ||
+                                    startsWord(source, i, "class"))) {
+                        pieces.add(new Piece(pieceStart, i, pieceLine));
+                        pieceStart = i;
+                        pieceLine = line;
+                    }
+                    last = c;
+                }
+            }
+        }
+
+        pieces.add(new Piece(pieceStart, length, pieceLine));
+        return pieces;
+    }
+
+    private static boolean startsWord(ByteBuffer source, int index,
+                                      String word) {
+        int end = index + word.length();
+        if (end >= source.limit()) return false;
+
+        for (int i = 0; i < word.length(); i++) {
+            if (source.get(index + i) != word.charAt(i)) return false;
+        }
+
+        byte next = source.get(end);
+        return !((next >= 'a' && next <= 'z') || (next >= 'A' && next <= 'Z') ||
+                (next >= '0' && next <= '9') || next == '_');
+    }
+}
@@ -1,7 +1,7 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
 import static com.craftinginterpreters.lox.TokenType.*;
@@ -10,11 +10,20 @@ class Parser {
     private static class ParseError extends RuntimeException {
     }
 
-    private final List<Token> tokens;
-    private int current = 0;
+    // Tokens are pulled one at a time; only the current and the previous
+    // one are kept.
+    private final Iterator<Token> tokens;
+    private Token current;
+    private Token previous;
+    private boolean hadError = false;
 
     Parser(List<Token> tokens) {
+        this(tokens.iterator());
+    }
+
+    Parser(Iterator<Token> tokens) {
         this.tokens = tokens;
+        this.current = tokens.next();
     }
 
     // program        → declaration* EOF ;
@@ -27,6 +36,22 @@ class Parser {
         return statements;
     }
 
+    // Parses the program one top-level declaration at a time, so it can be
+    // run while the rest is still being read. Declarations with syntax
+    // errors are reported and skipped. Returns null at the end.
+    Stmt nextDeclaration() {
+        while (!isAtEnd()) {
+            Stmt statement = declaration();
+            if (statement != null) return statement;
+        }
+
+        return null;
+    }
+
+    boolean hadError() {
+        return hadError;
+    }
+
     // expression     → assignment ;
     private Expr expression() {
         return assignment();
@@ -107,21 +132,7 @@ class Parser {
 
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(
-                    Arrays.asList(
-                            body,
-                            new Stmt.Expression(increment)));
-        }
-
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
-
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-
-        return body;
+        return new Stmt.For(initializer, condition, increment, body);
     }
     private Stmt ifStatement() {
         consume(LEFT_PAREN, "Expect '(' after 'if'.");
@@ -424,7 +435,10 @@ class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()) {
+            previous = current;
+            current = tokens.next();
+        }
         return previous();
     }
 
@@ -433,14 +447,15 @@ class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return current;
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private ParseError error(Token token, String message) {
+        hadError = true;
         Lox.error(token, message);
         return new ParseError();
     }
@@ -0,0 +1,95 @@
+package com.craftinginterpreters.lox;
+
+// A polymorphic inline cache for one property get or set site. Shapes are
+// never shared between classes, so the shape alone tells where a field
+// lives or which method a name refers to.
+public final class PropertyCache {
+    // Past this many shapes the site is megamorphic and stops caching.
+    private static final int MAX_ENTRIES = 4;
+
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    // For gets, the field's slot, or -1 when the name is a method.
+    private final int[] slots = new int[MAX_ENTRIES];
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES];
+    // For sets, the shape the instance has after the store.
+    private final Shape[] next = new Shape[MAX_ENTRIES];
+    private int count = 0;
+
+    Object get(LoxInstance instance, Token name) {
+        int entry = lookUp(instance, name);
+        if (entry == -1) return instance.get(name);
+
+        if (slots[entry] != -1) return instance.field(slots[entry]);
+        return methods[entry].bind(instance);
+    }
+
+    // Returns the unbound method a call site names, or null if the name
+    // refers to a field.
+    LoxFunction method(LoxInstance instance, Token name) {
+        int entry = lookUp(instance, name);
+        if (entry == -1) {
+            if (instance.shape().slot(name.symbol) != -1) return null;
+            LoxFunction method = instance.klass().findMethod(name.symbol);
+            if (method != null) return method;
+            throw undefined(name);
+        }
+
+        return methods[entry];
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape();
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                instance.store(next[i], slots[i], value);
+                return;
+            }
+        }
+
+        if (count == MAX_ENTRIES) {
+            instance.set(name, value);
+            return;
+        }
+
+        int slot = shape.slot(name.symbol);
+        Shape after = shape;
+        if (slot == -1) {
+            slot = shape.size();
+            after = shape.with(name.symbol);
+        }
+
+        shapes[count] = shape;
+        slots[count] = slot;
+        next[count] = after;
+        count++;
+        instance.store(after, slot, value);
+    }
+
+    // Finds or adds the entry for the instance's shape. Returns -1 when the
+    // site is megamorphic.
+    private int lookUp(LoxInstance instance, Token name) {
+        Shape shape = instance.shape();
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) return i;
+        }
+
+        if (count == MAX_ENTRIES) return -1;
+
+        int slot = shape.slot(name.symbol);
+        LoxFunction method = null;
+        if (slot == -1) {
+            method = instance.klass().findMethod(name.symbol);
+            if (method == null) throw undefined(name);
+        }
+
+        shapes[count] = shape;
+        slots[count] = slot;
+        methods[count] = method;
+        return count++;
+    }
+
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name,
+                "Undefined property '" + name.lexeme + "'.");
+    }
+}
@@ -1,5 +1,7 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,10 +20,93 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         CLASS
     }
 
+    private static class Local {
+        final int slot;
+        // The function declaring it, or null for a block at the top level,
+        // and the level of the environment it lives in.
+        final Closure function;
+        final int level;
+        boolean defined = false;
+        // Whether its declaration has finished, which for a function or
+        // class is only after its body.
+        boolean initialized = false;
+        boolean assigned = false;
+        boolean captured = false;
+        boolean capturedEarly = false;
+        // What to mark if it ends up in a cell: the statement declaring it
+        // and the expressions using it.
+        Stmt declaration = null;
+        final List<Expr> uses = new ArrayList<>();
+
+        Local(int slot, Closure function, int level) {
+            this.slot = slot;
+            this.function = function;
+            this.level = level;
+        }
+
+        // A closure can copy a local that already has its value and keeps
+        // it. Any other captured local is shared through a cell.
+        boolean needsCell() {
+            return captured && (assigned || capturedEarly);
+        }
+    }
+
+    // A function being resolved, and the locals of enclosing functions it
+    // captures.
+    private static class Closure {
+        final Closure enclosing;
+        // The levels of the environments of the function's frame and of
+        // the scope it is declared in.
+        final int level;
+        final int declaredLevel;
+        final List<Capture> captures = new ArrayList<>();
+        final Map<Local, Integer> indexes = new HashMap<>();
+
+        Closure(Closure enclosing, int declaredLevel) {
+            this.enclosing = enclosing;
+            this.declaredLevel = declaredLevel;
+            this.level = declaredLevel + 1;
+        }
+    }
+
+    // A scope's locals live in the environment of its host. Closures copy
+    // what they capture instead of holding on to environments, so only a
+    // function body, or a scope at the top level where there is nothing
+    // around it, needs an environment of its own. Any other scope is hosted
+    // by the scope around it and its locals get slots there, which are
+    // given back for reuse when it ends.
+    private static class Scope {
+        final Map<Symbol, Local> locals = new HashMap<>();
+        final Closure function;
+        final Scope host;
+        // How many environments there are up to and including the host's.
+        final int level;
+        final int firstSlot;
+        int nextSlot;
+        int slotCount = 0;
+
+        Scope(Scope enclosing, Closure function, boolean inlined) {
+            this.function = function;
+            if (inlined) {
+                host = enclosing.host;
+                level = enclosing.level;
+                firstSlot = host.nextSlot;
+            } else {
+                host = this;
+                level = enclosing == null ? 1 : enclosing.level + 1;
+                firstSlot = 0;
+            }
+            nextSlot = firstSlot;
+        }
+    }
+
     private ClassType currentClass = ClassType.NONE;
+    // The "this" of the class being resolved, which every method captures
+    // first.
+    private Local currentThis = null;
 
     private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
     Resolver(Interpreter interpreter) {
@@ -30,9 +115,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        stmt.inlined = !scopes.isEmpty();
+        beginScope(stmt.inlined);
         resolve(stmt.statements);
-        endScope();
+        stmt.slotCount = endScope();
         return null;
     }
 
@@ -40,23 +126,22 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
+        Local enclosingThis = currentThis;
+        currentThis = new Local(0, null, 0);
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.symbol == Symbol.INIT) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
+        initialized(stmt.name);
 
-        endScope();
-
+        currentThis = enclosingThis;
         currentClass = enclosingClass;
         return null;
     }
@@ -67,12 +152,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        stmt.inlined = !scopes.isEmpty();
+        beginScope(stmt.inlined);
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        if (stmt.condition != null) resolve(stmt.condition);
+        if (stmt.increment != null) resolve(stmt.increment);
+        resolve(stmt.body);
+        stmt.slotCount = endScope();
+        return null;
+    }
+
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
+        initialized(stmt.name);
         return null;
     }
 
@@ -110,11 +208,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
         define(stmt.name);
+        initialized(stmt.name);
         return null;
     }
 
@@ -189,7 +288,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             return null;
         }
 
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr, currentThis);
         return null;
     }
 
@@ -201,10 +300,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-                scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,
-                    "Can't read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().locals.get(expr.name.symbol);
+            if (local != null && !local.defined) {
+                Lox.error(expr.name,
+                        "Can't read local variable in its own initializer.");
+            }
         }
 
         resolveLocal(expr, expr.name);
@@ -230,47 +331,160 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
 
-        beginScope();
+        Scope enclosing = scopes.isEmpty() ? null : scopes.peek();
+        Closure closure = enclosing == null
+                ? new Closure(null, 0)
+                : new Closure(enclosing.function, enclosing.level);
+        if (type == FunctionType.METHOD ||
+                type == FunctionType.INITIALIZER) {
+            closure.indexes.put(currentThis, 0);
+            closure.captures.add(new Capture(-1, 0));
+        }
+
+        scopes.push(new Scope(enclosing, closure, false));
         for (Token param : function.params) {
-            declare(param);
+            declare(param, null);
             define(param);
+            initialized(param);
         }
         resolve(function.body);
-        endScope();
+
+        int[] cellParams = new int[function.params.size()];
+        int count = 0;
+        for (Token param : function.params) {
+            Local local = scopes.peek().locals.get(param.symbol);
+            if (local.needsCell()) cellParams[count++] = local.slot;
+        }
+        function.cellParams = Arrays.copyOf(cellParams, count);
+        function.captures = List.copyOf(closure.captures);
+        function.slotCount = endScope();
         currentFunction = enclosingFunction;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+    private void beginScope(boolean inlined) {
+        Scope enclosing = scopes.isEmpty() ? null : scopes.peek();
+        Closure function = enclosing == null ? null : enclosing.function;
+        scopes.push(new Scope(enclosing, function, inlined));
     }
 
-    private void endScope() {
-        scopes.pop();
+    // Returns how many slots the scope's environment needs, which is none
+    // for an inlined scope. Every use of the scope's locals has been seen by
+    // now, so this is where the ones that need cells are marked.
+    private int endScope() {
+        Scope scope = scopes.pop();
+        for (Local local : scope.locals.values()) {
+            if (local.needsCell()) markCell(local);
+        }
+
+        if (scope.host != scope) {
+            scope.host.nextSlot = scope.firstSlot;
+            return 0;
+        }
+        return scope.slotCount;
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    private static void markCell(Local local) {
+        if (local.declaration instanceof Stmt.Var var) {
+            var.cell = true;
+        } else if (local.declaration instanceof Stmt.Function function) {
+            function.cell = true;
+        } else if (local.declaration instanceof Stmt.Class klass) {
+            klass.cell = true;
+        }
+
+        for (Expr use : local.uses) {
+            if (use instanceof Expr.Variable variable) {
+                variable.cell = true;
+            } else if (use instanceof Expr.Assign assign) {
+                assign.cell = true;
+            }
+        }
+    }
+
+    // Returns the slot the variable occupies in its scope's environment,
+    // or in the global table when declared at the top level.
+    private int declare(Token name, Stmt declaration) {
+        if (scopes.isEmpty()) return interpreter.globals.slot(name.symbol);
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        Scope scope = scopes.peek();
+        Local local = scope.locals.get(name.symbol);
+        if (local != null) {
             Lox.error(name,
                     "Already a variable with this name in this scope.");
+            return local.slot;
         }
 
-        scope.put(name.lexeme, false);
+        Scope host = scope.host;
+        local = new Local(host.nextSlot++, scope.function, scope.level);
+        host.slotCount = Math.max(host.slotCount, host.nextSlot);
+        local.declaration = declaration;
+        scope.locals.put(name.symbol, local);
+        return local.slot;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().locals.get(name.symbol).defined = true;
+    }
+
+    private void initialized(Token name) {
+        if (scopes.isEmpty()) return;
+        scopes.peek().locals.get(name.symbol).initialized = true;
     }
 
     private void resolveLocal(Expr expr, Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
+            Local local = scopes.get(i).locals.get(name.symbol);
+            if (local != null) {
+                resolveLocal(expr, local);
                 return;
             }
         }
+
+        // Not found in any local scope, so assume it is global. It may be
+        // defined later, which is only checked when the code runs.
+        interpreter.resolve(expr, -1, interpreter.globals.slot(name.symbol));
+    }
+
+    private void resolveLocal(Expr expr, Local local) {
+        local.uses.add(expr);
+        if (expr instanceof Expr.Assign) local.assigned = true;
+
+        // Depths count environments, so inlined scopes are skipped over.
+        Scope scope = scopes.peek();
+        if (local.function == scope.function) {
+            interpreter.resolve(expr, scope.level - local.level, local.slot);
+            return;
+        }
+
+        // A function's captures are in the environment just outside its
+        // frame.
+        Closure function = scope.function;
+        interpreter.resolve(expr, scope.level - function.level + 1,
+                capture(function, local));
+    }
+
+    // Returns where the function keeps a local of an enclosing function,
+    // capturing it in each function in between as well.
+    private int capture(Closure function, Local local) {
+        Integer index = function.indexes.get(local);
+        if (index != null) return index;
+
+        Capture capture;
+        if (function.enclosing == local.function) {
+            local.captured = true;
+            if (!local.initialized) local.capturedEarly = true;
+            capture = new Capture(function.declaredLevel - local.level,
+                    local.slot);
+        } else {
+            Closure enclosing = function.enclosing;
+            capture = new Capture(function.declaredLevel - enclosing.level + 1,
+                    capture(enclosing, local));
+        }
+
+        index = function.captures.size();
+        function.captures.add(capture);
+        function.indexes.put(local, index);
+        return index;
     }
 }
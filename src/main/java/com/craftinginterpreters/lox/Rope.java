@@ -0,0 +1,93 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// A Lox string built by concatenation. Joining two strings only links them.
+// The text is assembled once, when something needs it: printing, comparing
+// or hashing. A Lox string value is either a String or a Rope.
+final class Rope implements CharSequence {
+    // Shorter results are copied right away, which is cheaper than a node.
+    private static final int MIN_LENGTH = 64;
+
+    // Both null once the rope has been flattened.
+    private CharSequence left;
+    private CharSequence right;
+    private final int length;
+    private String flat = null;
+
+    private Rope(CharSequence left, CharSequence right) {
+        this.left = left;
+        this.right = right;
+        this.length = left.length() + right.length();
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof Rope;
+    }
+
+    // Concatenates two string values.
+    static Object concat(Object left, Object right) {
+        CharSequence a = (CharSequence) left;
+        CharSequence b = (CharSequence) right;
+        if (a.length() + b.length() < MIN_LENGTH) {
+            return a.toString() + b.toString();
+        }
+
+        return new Rope(a, b);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flatten();
+        return flat;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Rope rope && toString().equals(rope.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    // Walks the tree with an explicit stack, since a string built up in a
+    // loop is as deep as the loop is long.
+    private void flatten() {
+        StringBuilder builder = new StringBuilder(length);
+        Deque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(right);
+        pending.push(left);
+
+        while (!pending.isEmpty()) {
+            CharSequence piece = pending.pop();
+            if (piece instanceof Rope rope && rope.flat == null) {
+                pending.push(rope.right);
+                pending.push(rope.left);
+            } else {
+                builder.append(piece.toString());
+            }
+        }
+
+        flat = builder.toString();
+        left = null;
+        right = null;
+    }
+}
@@ -1,9 +1,9 @@
 package com.craftinginterpreters.lox;
 
-class RuntimeError extends RuntimeException {
+public class RuntimeError extends RuntimeException {
     final Token token;
 
-    RuntimeError(Token token, String message) {
+    public RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
     }
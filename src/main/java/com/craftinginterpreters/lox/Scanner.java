@@ -1,58 +1,182 @@
 package com.craftinginterpreters.lox;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
-class Scanner {
-    private static final Map<String, TokenType> keywords;
+class Scanner implements Iterator<Token> {
+    // Tokens other than identifiers and literals always have the same text,
+    // so their lexemes and symbols are shared instead of cut from the source.
+    private static final String[] lexemes =
+            new String[TokenType.values().length];
+    private static final Symbol[] keywordSymbols =
+            new Symbol[TokenType.values().length];
 
     static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
-
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+        fixed(LEFT_PAREN, "(");
+        fixed(RIGHT_PAREN, ")");
+        fixed(LEFT_BRACE, "{");
+        fixed(RIGHT_BRACE, "}");
+        fixed(COMMA, ",");
+        fixed(DOT, ".");
+        fixed(MINUS, "-");
+        fixed(PLUS, "+");
+        fixed(SEMICOLON, ";");
+        fixed(SLASH, "/");
+        fixed(STAR, "*");
+        fixed(BANG, "!");
+        fixed(BANG_EQUAL, "!=");
+        fixed(EQUAL, "=");
+        fixed(EQUAL_EQUAL, "==");
+        fixed(GREATER, ">");
+        fixed(GREATER_EQUAL, ">=");
+        fixed(LESS, "<");
+        fixed(LESS_EQUAL, "<=");
+
+        keyword(AND,    "and");
+        keyword(CLASS,  "class");
+        keyword(ELSE,   "else");
+        keyword(FALSE,  "false");
+        keyword(FOR,    "for");
+        keyword(FUN,    "fun");
+        keyword(IF,     "if");
+        keyword(NIL,    "nil");
+        keyword(OR,     "or");
+        keyword(PRINT,  "print");
+        keyword(RETURN, "return");
+        keyword(SUPER,  "super");
+        keyword(THIS,   "this");
+        keyword(TRUE,   "true");
+        keyword(VAR,    "var");
+        keyword(WHILE,  "while");
+    }
+
+    private static void fixed(TokenType type, String lexeme) {
+        lexemes[type.ordinal()] = lexeme;
+    }
+
+    private static void keyword(TokenType type, String lexeme) {
+        fixed(type, lexeme);
+        keywordSymbols[type.ordinal()] = Symbol.of(lexeme);
+    }
+
+    // Every double with up to 15 significant digits, divided by one of
+    // these, is rounded exactly as Double.parseDouble would round it.
+    private static final double[] powersOfTen = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7,
+            1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private static final int CHUNK_SIZE = 8192;
+
+    // Only a window of the source is held in memory: the characters from
+    // the start of the current lexeme up to what has been read so far.
+    private final Readable source;
+    private char[] buffer = new char[CHUNK_SIZE];
+    private int limit = 0;
+    private boolean exhausted = false;
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    private Token next;
+    private boolean emittedEof = false;
+
+    // Identifiers seen so far, in an open-addressed table. A name that was
+    // seen before is found by comparing characters in the buffer, without
+    // building a string to look it up.
+    private Symbol[] names = new Symbol[256];
+    private int nameCount = 0;
 
     Scanner(String source) {
+        this(CharBuffer.wrap(source));
+    }
+
+    Scanner(Readable source) {
+        this(source, 1);
+    }
+
+    // Scans a piece of a larger source that starts on the given line.
+    Scanner(Readable source, int line) {
         this.source = source;
+        this.line = line;
     }
 
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        List<Token> tokens = new ArrayList<>();
+        while (hasNext()) tokens.add(next());
+        return tokens;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !emittedEof;
+    }
+
+    @Override
+    public Token next() {
+        if (emittedEof) throw new NoSuchElementException();
+
+        while (next == null && !isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        Token token = next;
+        if (token == null) {
+            token = new Token(EOF, "", null, line);
+            emittedEof = true;
+        }
+        next = null;
+        return token;
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !fill(1);
+    }
+
+    // Makes sure `count` characters past current are buffered, reading
+    // another chunk if needed. Returns false if the source runs out first.
+    private boolean fill(int count) {
+        while (limit - current < count) {
+            if (exhausted) return false;
+
+            if (start > 0) {
+                // Drop everything before the current lexeme.
+                System.arraycopy(buffer, start, buffer, 0, limit - start);
+                limit -= start;
+                current -= start;
+                start = 0;
+            } else if (limit == buffer.length) {
+                // A single lexeme longer than the buffer, like a huge string.
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            try {
+                int read = source.read(
+                        CharBuffer.wrap(buffer, limit, buffer.length - limit));
+                if (read == -1) {
+                    exhausted = true;
+                } else {
+                    limit += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return true;
+    }
+
+    private String text(int from, int to) {
+        return new String(buffer, from, to - from);
     }
 
     private void scanToken() {
@@ -116,10 +240,105 @@ class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        TokenType type = keywordType();
+        if (type != IDENTIFIER) {
+            next = new Token(type, lexemes[type.ordinal()], null, line,
+                    keywordSymbols[type.ordinal()]);
+            return;
+        }
+
+        // Every occurrence of a name shares one symbol and one string.
+        Symbol symbol = symbol();
+        next = new Token(IDENTIFIER, symbol.name, null, line, symbol);
+    }
+
+    // A trie over the keywords: branch on the first letter, and on the
+    // second where keywords share the first, then compare the rest.
+    private TokenType keywordType() {
+        switch (buffer[start]) {
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                        case 'u': return checkKeyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+
+        for (int i = 0; i < rest.length(); i++) {
+            if (buffer[start + offset + i] != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
+    }
+
+    private Symbol symbol() {
+        // The same polynomial as String.hashCode(), which names cache.
+        int hash = 0;
+        for (int i = start; i < current; i++) hash = 31 * hash + buffer[i];
+
+        int mask = names.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        for (Symbol name; (name = names[index]) != null;
+             index = (index + 1) & mask) {
+            if (name.name.hashCode() == hash && isLexeme(name.name)) {
+                return name;
+            }
+        }
+
+        Symbol symbol = Symbol.of(text(start, current));
+        names[index] = symbol;
+        if (++nameCount * 2 > names.length) growNames();
+        return symbol;
+    }
+
+    private boolean isLexeme(String text) {
+        if (text.length() != current - start) return false;
+
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer[start + i] != text.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void growNames() {
+        Symbol[] old = names;
+        names = new Symbol[old.length * 2];
+        int mask = names.length - 1;
+        for (Symbol name : old) {
+            if (name == null) continue;
+
+            int hash = name.name.hashCode();
+            int index = (hash ^ (hash >>> 16)) & mask;
+            while (names[index] != null) index = (index + 1) & mask;
+            names[index] = name;
+        }
     }
 
     private void number() {
@@ -133,8 +352,25 @@ class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER, numberValue());
+    }
+
+    private double numberValue() {
+        long digits = 0;
+        int count = 0;
+        int scale = 0;
+        for (int i = start; i < current; i++) {
+            char c = buffer[i];
+            if (c == '.') {
+                scale = current - i - 1;
+            } else {
+                digits = digits * 10 + (c - '0');
+                count++;
+            }
+        }
+
+        if (count <= MAX_EXACT_DIGITS) return digits / powersOfTen[scale];
+        return Double.parseDouble(text(start, current));
     }
 
     private void string() {
@@ -152,13 +388,13 @@ class Scanner {
         advance();
 
         // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
+        String value = text(start + 1, current - 1);
         addToken(STRING, value);
     }
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (buffer[current] != expected) return false;
 
         current++;
         return true;
@@ -166,12 +402,12 @@ class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return buffer[current];
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!fill(2)) return '\0';
+        return buffer[current + 1];
     }
 
     private boolean isAlpha(char c) {
@@ -189,15 +425,15 @@ class Scanner {
     }
 
     private char advance() {
-        return source.charAt(current++);
+        fill(1);
+        return buffer[current++];
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
+        next = new Token(type, lexemes[type.ordinal()], null, line);
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        next = new Token(type, text(start, current), literal, line);
     }
 }
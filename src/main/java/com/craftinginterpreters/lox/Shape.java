@@ -0,0 +1,42 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The field layout of a LoxInstance. Instances of a class that gained the
+// same fields in the same order share a shape, and the values themselves
+// live in an array on the instance indexed by the shape's slots. Each class
+// has its own root shape, so a shape also identifies the class.
+final class Shape {
+    private final Map<Symbol, Integer> slots;
+    private final Map<Symbol, Shape> transitions = new ConcurrentHashMap<>();
+
+    // Creates the empty root shape for a class.
+    Shape() {
+        this(new HashMap<>());
+    }
+
+    private Shape(Map<Symbol, Integer> slots) {
+        this.slots = slots;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    // Returns the field's index in the instance's values, or -1.
+    int slot(Symbol name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // The shape an instance moves to when it gains the given field.
+    Shape with(Symbol name) {
+        return transitions.computeIfAbsent(name, key -> {
+            Map<Symbol, Integer> added = new HashMap<>(slots);
+            added.put(key, slots.size());
+            return new Shape(added);
+        });
+    }
+}
@@ -0,0 +1,75 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An interned name. The scanner makes one Symbol per distinct identifier,
+// so structures keyed by name can compare symbols by identity and hash them
+// by id instead of hashing strings. The table only holds symbols weakly: a
+// name no longer used by any token, tree or table is dropped, so a process
+// running many unrelated scripts doesn't keep every name it has seen.
+public final class Symbol {
+    private static final Map<String, Entry> table = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Symbol> collected =
+            new ReferenceQueue<>();
+    private static final AtomicInteger count = new AtomicInteger();
+
+    public static final Symbol THIS = of("this");
+    public static final Symbol INIT = of("init");
+
+    private static final class Entry extends WeakReference<Symbol> {
+        final String name;
+
+        Entry(Symbol symbol) {
+            super(symbol, collected);
+            this.name = symbol.name;
+        }
+    }
+
+    public final String name;
+    public final int id;
+
+    private Symbol(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public static Symbol of(String name) {
+        Entry entry = table.get(name);
+        Symbol symbol = entry == null ? null : entry.get();
+        if (symbol != null) return symbol;
+
+        removeCollected();
+        Symbol[] interned = new Symbol[1];
+        table.compute(name, (key, old) -> {
+            interned[0] = old == null ? null : old.get();
+            if (interned[0] != null) return old;
+
+            interned[0] = new Symbol(key, count.getAndIncrement());
+            return new Entry(interned[0]);
+        });
+        return interned[0];
+    }
+
+    private static void removeCollected() {
+        Entry entry;
+        while ((entry = (Entry) collected.poll()) != null) {
+            // A newer symbol with the same name may have replaced it.
+            table.remove(entry.name, entry);
+        }
+    }
+
+    // Symbols compare by identity, so the id is a perfect hash.
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
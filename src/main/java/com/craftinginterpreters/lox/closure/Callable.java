@@ -0,0 +1,7 @@
+package com.craftinginterpreters.lox.closure;
+
+interface Callable {
+    int arity();
+
+    Object call(Object[] arguments);
+}
@@ -0,0 +1,10 @@
+package com.craftinginterpreters.lox.closure;
+
+// A captured local shared between its frame and the closures capturing it.
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,41 @@
+package com.craftinginterpreters.lox.closure;
+
+import com.craftinginterpreters.lox.Symbol;
+
+import java.util.Map;
+
+final class ClassValue implements Callable {
+    final String name;
+    private final Map<Symbol, FunctionValue> methods;
+    private final FunctionValue initializer;
+
+    ClassValue(String name, Map<Symbol, FunctionValue> methods) {
+        this.name = name;
+        this.methods = methods;
+        this.initializer = methods.get(Symbol.INIT);
+    }
+
+    FunctionValue findMethod(Symbol name) {
+        return methods.get(name);
+    }
+
+    @Override
+    public int arity() {
+        return initializer == null ? 0 : initializer.arity();
+    }
+
+    @Override
+    public Object call(Object[] arguments) {
+        InstanceValue instance = new InstanceValue(this);
+        if (initializer != null) {
+            initializer.bind(instance).call(arguments);
+        }
+
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
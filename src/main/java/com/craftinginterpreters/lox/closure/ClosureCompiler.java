@@ -0,0 +1,582 @@
+package com.craftinginterpreters.lox.closure;
+
+import com.craftinginterpreters.lox.Capture;
+import com.craftinginterpreters.lox.Expr;
+import com.craftinginterpreters.lox.Globals;
+import com.craftinginterpreters.lox.RuntimeError;
+import com.craftinginterpreters.lox.Stmt;
+import com.craftinginterpreters.lox.Symbol;
+import com.craftinginterpreters.lox.Token;
+import com.craftinginterpreters.lox.TokenType;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Turns a resolved syntax tree into a tree of pre-built lambdas. All the
+// decisions the Interpreter makes on every visit -- which operator, which
+// frame and slot a variable lives in, whether an operand is a constant
+// number -- are made once here, so the lambdas only do the actual work.
+class ClosureCompiler implements Expr.Visitor<Evaluator>,
+        Stmt.Visitor<Executor> {
+    private final Globals globals;
+    // Zero while compiling top-level code, where declarations are global.
+    private int scopeDepth = 0;
+
+    ClosureCompiler(Globals globals) {
+        this.globals = globals;
+    }
+
+    Executor compile(List<Stmt> statements) {
+        return sequence(statements);
+    }
+
+    @Override
+    public Executor visitBlockStmt(Stmt.Block stmt) {
+        scopeDepth++;
+        Executor body = sequence(stmt.statements);
+        scopeDepth--;
+
+        // An inlined block's locals have slots in the enclosing frame.
+        if (stmt.inlined) return body;
+
+        int size = stmt.slotCount;
+        return frame -> body.execute(new Frame(frame, size));
+    }
+
+    @Override
+    public Executor visitClassStmt(Stmt.Class stmt) {
+        String name = stmt.name.lexeme;
+        Map<Symbol, FunctionCode> methods = new HashMap<>();
+        for (Stmt.Function method : stmt.methods) {
+            methods.put(method.name.symbol,
+                    function(method, method.name.symbol == Symbol.INIT));
+        }
+
+        return define(stmt.name, stmt.slot, stmt.cell, frame -> {
+            Map<Symbol, FunctionValue> closures = new HashMap<>();
+            for (Map.Entry<Symbol, FunctionCode> method : methods.entrySet()) {
+                FunctionCode code = method.getValue();
+                closures.put(method.getKey(),
+                        new FunctionValue(code, capture(code, frame)));
+            }
+            return new ClassValue(name, closures);
+        });
+    }
+
+    @Override
+    public Executor visitExpressionStmt(Stmt.Expression stmt) {
+        Evaluator expression = compile(stmt.expression);
+        return frame -> {
+            expression.evaluate(frame);
+            return Executor.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitForStmt(Stmt.For stmt) {
+        scopeDepth++;
+        Executor initializer = stmt.initializer == null
+                ? frame -> Executor.NORMAL : compile(stmt.initializer);
+        Evaluator condition = stmt.condition == null
+                ? frame -> true : compile(stmt.condition);
+        Evaluator increment = stmt.increment == null
+                ? frame -> null : compile(stmt.increment);
+        Executor body = compile(stmt.body);
+        scopeDepth--;
+
+        Executor loop = frame -> {
+            initializer.execute(frame);
+            while (isTruthy(condition.evaluate(frame))) {
+                Object result = body.execute(frame);
+                if (result != Executor.NORMAL) return result;
+                increment.evaluate(frame);
+            }
+            return Executor.NORMAL;
+        };
+        if (stmt.inlined) return loop;
+
+        int size = stmt.slotCount;
+        return frame -> loop.execute(new Frame(frame, size));
+    }
+
+    @Override
+    public Executor visitFunctionStmt(Stmt.Function stmt) {
+        FunctionCode code = function(stmt, false);
+        return define(stmt.name, stmt.slot, stmt.cell,
+                frame -> new FunctionValue(code, capture(code, frame)));
+    }
+
+    @Override
+    public Executor visitIfStmt(Stmt.If stmt) {
+        Evaluator condition = compile(stmt.condition);
+        Executor thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return frame -> isTruthy(condition.evaluate(frame))
+                    ? thenBranch.execute(frame) : Executor.NORMAL;
+        }
+
+        Executor elseBranch = compile(stmt.elseBranch);
+        return frame -> isTruthy(condition.evaluate(frame))
+                ? thenBranch.execute(frame) : elseBranch.execute(frame);
+    }
+
+    @Override
+    public Executor visitPrintStmt(Stmt.Print stmt) {
+        Evaluator expression = compile(stmt.expression);
+        return frame -> {
+            System.out.println(stringify(expression.evaluate(frame)));
+            return Executor.NORMAL;
+        };
+    }
+
+    @Override
+    public Executor visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return frame -> null;
+        if (stmt.value instanceof Expr.Call call) {
+            return call(call, true)::evaluate;
+        }
+
+        Evaluator value = compile(stmt.value);
+        return value::evaluate;
+    }
+
+    @Override
+    public Executor visitVarStmt(Stmt.Var stmt) {
+        Evaluator initializer = stmt.initializer == null
+                ? frame -> null : compile(stmt.initializer);
+        return define(stmt.name, stmt.slot, stmt.cell, initializer);
+    }
+
+    @Override
+    public Executor visitWhileStmt(Stmt.While stmt) {
+        Evaluator condition = compile(stmt.condition);
+        Executor body = compile(stmt.body);
+        return frame -> {
+            while (isTruthy(condition.evaluate(frame))) {
+                Object result = body.execute(frame);
+                if (result != Executor.NORMAL) return result;
+            }
+            return Executor.NORMAL;
+        };
+    }
+
+    @Override
+    public Evaluator visitAssignExpr(Expr.Assign expr) {
+        Evaluator value = compile(expr.value);
+        Token name = expr.name;
+        int slot = expr.slot;
+
+        if (expr.depth == -1) {
+            int global = globals.slot(name.symbol);
+            return frame -> {
+                Object result = value.evaluate(frame);
+                globals.assign(global, name, result);
+                return result;
+            };
+        }
+
+        int depth = expr.depth;
+        if (expr.cell) {
+            return frame -> {
+                Object result = value.evaluate(frame);
+                ((Cell) ancestor(frame, depth).slots[slot]).value = result;
+                return result;
+            };
+        }
+
+        return switch (depth) {
+            case 0 -> frame -> frame.slots[slot] = value.evaluate(frame);
+            case 1 -> frame -> frame.parent.slots[slot] = value.evaluate(frame);
+            default -> frame -> {
+                Object result = value.evaluate(frame);
+                ancestor(frame, depth).slots[slot] = result;
+                return result;
+            };
+        };
+    }
+
+    @Override
+    public Evaluator visitBinaryExpr(Expr.Binary expr) {
+        Evaluator left = compile(expr.left);
+        Token operator = expr.operator;
+
+        if (expr.right instanceof Expr.Literal literal &&
+                literal.value instanceof Double constant) {
+            Evaluator specialized =
+                    binaryWithConstant(left, operator, constant);
+            if (specialized != null) return specialized;
+        }
+
+        Evaluator right = compile(expr.right);
+        return switch (operator.type) {
+            case GREATER -> frame -> {
+                Object a = left.evaluate(frame);
+                Object b = right.evaluate(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a > (double) b;
+            };
+            case GREATER_EQUAL -> frame -> {
+                Object a = left.evaluate(frame);
+                Object b = right.evaluate(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a >= (double) b;
+            };
+            case LESS -> frame -> {
+                Object a = left.evaluate(frame);
+                Object b = right.evaluate(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a < (double) b;
+            };
+            case LESS_EQUAL -> frame -> {
+                Object a = left.evaluate(frame);
+                Object b = right.evaluate(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a <= (double) b;
+            };
+            case BANG_EQUAL -> frame ->
+                    !isEqual(left.evaluate(frame), right.evaluate(frame));
+            case EQUAL_EQUAL -> frame ->
+                    isEqual(left.evaluate(frame), right.evaluate(frame));
+            case MINUS -> frame -> {
+                Object a = left.evaluate(frame);
+                Object b = right.evaluate(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a - (double) b;
+            };
+            case PLUS -> frame -> {
+                Object a = left.evaluate(frame);
+                Object b = right.evaluate(frame);
+                if (a instanceof Double && b instanceof Double) {
+                    return (double) a + (double) b;
+                }
+
+                if (a instanceof String && b instanceof String) {
+                    return (String) a + (String) b;
+                }
+
+                throw new RuntimeError(operator,
+                        "Operands must be two numbers or two strings.");
+            };
+            case SLASH -> frame -> {
+                Object a = left.evaluate(frame);
+                Object b = right.evaluate(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a / (double) b;
+            };
+            case STAR -> frame -> {
+                Object a = left.evaluate(frame);
+                Object b = right.evaluate(frame);
+                checkNumberOperands(operator, a, b);
+                return (double) a * (double) b;
+            };
+            default -> throw new IllegalStateException(
+                    "Unexpected binary operator " + operator.type);
+        };
+    }
+
+    // Variants of the numeric operators for the very common case of a
+    // number literal on the right, as in "n - 1" or "i < 10". The
+    // constant is unboxed once here instead of on every evaluation.
+    private Evaluator binaryWithConstant(Evaluator left, Token operator,
+                                         double b) {
+        return switch (operator.type) {
+            case GREATER -> frame -> number(operator, left.evaluate(frame)) > b;
+            case GREATER_EQUAL -> frame -> number(operator, left.evaluate(frame)) >= b;
+            case LESS -> frame -> number(operator, left.evaluate(frame)) < b;
+            case LESS_EQUAL -> frame -> number(operator, left.evaluate(frame)) <= b;
+            case MINUS -> frame -> number(operator, left.evaluate(frame)) - b;
+            case SLASH -> frame -> number(operator, left.evaluate(frame)) / b;
+            case STAR -> frame -> number(operator, left.evaluate(frame)) * b;
+            case PLUS -> frame -> {
+                Object a = left.evaluate(frame);
+                if (a instanceof Double) return (double) a + b;
+
+                throw new RuntimeError(operator,
+                        "Operands must be two numbers or two strings.");
+            };
+            default -> null;
+        };
+    }
+
+    @Override
+    public Evaluator visitCallExpr(Expr.Call expr) {
+        return call(expr, false);
+    }
+
+    // A tail call to a Lox function evaluates to a TailCall instead.
+    private Evaluator call(Expr.Call expr, boolean tail) {
+        Evaluator callee = compile(expr.callee);
+        Evaluator[] arguments = new Evaluator[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        return frame -> {
+            Object function = callee.evaluate(frame);
+
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                values[i] = arguments[i].evaluate(frame);
+            }
+
+            if (!(function instanceof Callable callable)) {
+                throw new RuntimeError(paren,
+                        "Can only call functions and classes.");
+            }
+
+            if (values.length != callable.arity()) {
+                throw new RuntimeError(paren, "Expected " +
+                        callable.arity() + " arguments but got " +
+                        values.length + ".");
+            }
+
+            if (tail && callable instanceof FunctionValue target) {
+                return new TailCall(target, values);
+            }
+
+            try {
+                return callable.call(values);
+            } catch (StackOverflowError error) {
+                throw new RuntimeError(paren, "Stack overflow.");
+            }
+        };
+    }
+
+    @Override
+    public Evaluator visitGetExpr(Expr.Get expr) {
+        Evaluator object = compile(expr.object);
+        Token name = expr.name;
+        return frame -> {
+            if (object.evaluate(frame) instanceof InstanceValue instance) {
+                return instance.get(name);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    @Override
+    public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Evaluator visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return frame -> value;
+    }
+
+    @Override
+    public Evaluator visitLogicalExpr(Expr.Logical expr) {
+        Evaluator left = compile(expr.left);
+        Evaluator right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return frame -> {
+                Object value = left.evaluate(frame);
+                return isTruthy(value) ? value : right.evaluate(frame);
+            };
+        }
+
+        return frame -> {
+            Object value = left.evaluate(frame);
+            return !isTruthy(value) ? value : right.evaluate(frame);
+        };
+    }
+
+    @Override
+    public Evaluator visitSetExpr(Expr.Set expr) {
+        Evaluator object = compile(expr.object);
+        Evaluator value = compile(expr.value);
+        Token name = expr.name;
+        return frame -> {
+            if (!(object.evaluate(frame) instanceof InstanceValue instance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.evaluate(frame);
+            instance.set(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Evaluator visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot, false);
+    }
+
+    @Override
+    public Evaluator visitUnaryExpr(Expr.Unary expr) {
+        Evaluator right = compile(expr.right);
+        Token operator = expr.operator;
+
+        return switch (operator.type) {
+            case BANG -> frame -> !isTruthy(right.evaluate(frame));
+            case MINUS -> frame -> {
+                Object value = right.evaluate(frame);
+                if (value instanceof Double) return -(double) value;
+
+                throw new RuntimeError(operator, "Operand must be a number.");
+            };
+            default -> throw new IllegalStateException(
+                    "Unexpected unary operator " + operator.type);
+        };
+    }
+
+    @Override
+    public Evaluator visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.depth, expr.slot, expr.cell);
+    }
+
+    private Evaluator compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Executor compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Executor sequence(List<Stmt> statements) {
+        Executor[] executors = new Executor[statements.size()];
+        for (int i = 0; i < executors.length; i++) {
+            executors[i] = compile(statements.get(i));
+        }
+
+        if (executors.length == 1) return executors[0];
+
+        return frame -> {
+            for (Executor executor : executors) {
+                Object result = executor.execute(frame);
+                if (result != Executor.NORMAL) return result;
+            }
+            return Executor.NORMAL;
+        };
+    }
+
+    private FunctionCode function(Stmt.Function stmt, boolean isInitializer) {
+        scopeDepth++;
+        Executor body = sequence(stmt.body);
+        scopeDepth--;
+
+        int[] captureDepths = new int[stmt.captures.size()];
+        int[] captureSlots = new int[stmt.captures.size()];
+        for (int i = 0; i < captureDepths.length; i++) {
+            Capture capture = stmt.captures.get(i);
+            captureDepths[i] = capture.depth();
+            captureSlots[i] = capture.slot();
+        }
+
+        return new FunctionCode(stmt.name.lexeme, stmt.params.size(),
+                stmt.slotCount, body, isInitializer, captureDepths,
+                captureSlots, stmt.cellParams);
+    }
+
+    // The frame holding what a new closure captures from the given one.
+    private static Frame capture(FunctionCode code, Frame frame) {
+        int[] depths = code.captureDepths();
+        int[] slots = code.captureSlots();
+        if (depths.length == 0) return null;
+
+        Frame closure = new Frame(null, depths.length);
+        for (int i = 0; i < depths.length; i++) {
+            // The instance a method is bound to is filled in by bind().
+            if (depths[i] == -1) continue;
+            closure.slots[i] = ancestor(frame, depths[i]).slots[slots[i]];
+        }
+        return closure;
+    }
+
+    private Executor define(Token name, int slot, boolean cell,
+                            Evaluator value) {
+        if (scopeDepth == 0) {
+            int global = globals.slot(name.symbol);
+            return frame -> {
+                globals.define(global, value.evaluate(frame));
+                return Executor.NORMAL;
+            };
+        }
+
+        if (cell) {
+            // The cell comes first, for closures in the value that capture
+            // it.
+            return frame -> {
+                Cell shared = new Cell(null);
+                frame.slots[slot] = shared;
+                shared.value = value.evaluate(frame);
+                return Executor.NORMAL;
+            };
+        }
+
+        return frame -> {
+            frame.slots[slot] = value.evaluate(frame);
+            return Executor.NORMAL;
+        };
+    }
+
+    private Evaluator variable(Token name, int depth, int slot,
+                               boolean cell) {
+        if (depth == -1) {
+            int global = globals.slot(name.symbol);
+            return frame -> globals.get(global, name);
+        }
+        if (cell) {
+            return frame -> ((Cell) ancestor(frame, depth).slots[slot]).value;
+        }
+
+        return switch (depth) {
+            case 0 -> frame -> frame.slots[slot];
+            case 1 -> frame -> frame.parent.slots[slot];
+            case 2 -> frame -> frame.parent.parent.slots[slot];
+            default -> frame -> ancestor(frame, depth).slots[slot];
+        };
+    }
+
+    private static Frame ancestor(Frame frame, int distance) {
+        for (int i = 0; i < distance; i++) {
+            frame = frame.parent;
+        }
+
+        return frame;
+    }
+
+    private static double number(Token operator, Object operand) {
+        if (operand instanceof Double) return (double) operand;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    private static void checkNumberOperands(Token operator,
+                                            Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+
+        return a.equals(b);
+    }
+
+    private static String stringify(Object object) {
+        if (object == null) return "nil";
+
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+
+        return object.toString();
+    }
+}
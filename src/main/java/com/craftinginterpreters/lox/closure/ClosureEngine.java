@@ -0,0 +1,43 @@
+package com.craftinginterpreters.lox.closure;
+
+import com.craftinginterpreters.lox.Globals;
+import com.craftinginterpreters.lox.Lox;
+import com.craftinginterpreters.lox.RuntimeError;
+import com.craftinginterpreters.lox.Stmt;
+
+import java.util.List;
+
+// Runs programs by first compiling them with ClosureCompiler. Like the
+// Interpreter, it keeps its globals between calls to interpret().
+public class ClosureEngine {
+    private final Globals globals = new Globals();
+
+    public ClosureEngine() {
+        globals.define("clock", new Callable() {
+            @Override
+            public int arity() {
+                return 0;
+            }
+
+            @Override
+            public Object call(Object[] arguments) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    public void interpret(List<Stmt> statements) {
+        Executor program = new ClosureCompiler(globals).compile(statements);
+        try {
+            // Top-level code runs without a frame; its variables are global.
+            program.execute(null);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package com.craftinginterpreters.lox.closure;
+
+@FunctionalInterface
+interface Evaluator {
+    Object evaluate(Frame frame);
+}
@@ -0,0 +1,10 @@
+package com.craftinginterpreters.lox.closure;
+
+@FunctionalInterface
+interface Executor {
+    // Returned by statements that complete normally. Anything else is the
+    // value of a return statement unwinding to the enclosing call.
+    Object NORMAL = new Object();
+
+    Object execute(Frame frame);
+}
@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox.closure;
+
+// The runtime counterpart of a resolver scope with an environment of its
+// own, a function body or a top-level block or loop, or the values and
+// cells a closure captured.
+final class Frame {
+    final Frame parent;
+    final Object[] slots;
+
+    Frame(Frame parent, int size) {
+        this.parent = parent;
+        this.slots = new Object[size];
+    }
+}
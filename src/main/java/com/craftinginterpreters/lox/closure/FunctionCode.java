@@ -0,0 +1,10 @@
+package com.craftinginterpreters.lox.closure;
+
+// Everything about a function that is fixed at compile time. What it
+// captures is given as parallel arrays of depths and slots, and cellParams
+// lists the parameters kept in cells.
+record FunctionCode(String name, int arity, int slotCount,
+                    Executor body, boolean isInitializer,
+                    int[] captureDepths, int[] captureSlots,
+                    int[] cellParams) {
+}
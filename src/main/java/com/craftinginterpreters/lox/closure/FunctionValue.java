@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox.closure;
+
+final class FunctionValue implements Callable {
+    final FunctionCode code;
+    // What the function captured, or null if it captured nothing.
+    private final Frame closure;
+
+    FunctionValue(FunctionCode code, Frame closure) {
+        this.code = code;
+        this.closure = closure;
+    }
+
+    // A method's captures start with the instance it is bound to.
+    FunctionValue bind(InstanceValue instance) {
+        Frame captures = new Frame(null, closure.slots.length);
+        System.arraycopy(closure.slots, 0, captures.slots, 0,
+                closure.slots.length);
+        captures.slots[0] = instance;
+        return new FunctionValue(code, captures);
+    }
+
+    @Override
+    public int arity() {
+        return code.arity();
+    }
+
+    @Override
+    public Object call(Object[] arguments) {
+        Object result = run(arguments);
+        while (result instanceof TailCall tail) {
+            result = tail.function().run(tail.arguments());
+        }
+        return result;
+    }
+
+    // Runs the body once, returning a TailCall if it ended in one.
+    private Object run(Object[] arguments) {
+        Frame frame = new Frame(closure, code.slotCount());
+        System.arraycopy(arguments, 0, frame.slots, 0, arguments.length);
+        for (int slot : code.cellParams()) {
+            frame.slots[slot] = new Cell(frame.slots[slot]);
+        }
+
+        Object result = code.body().execute(frame);
+        if (code.isInitializer()) return closure.slots[0];
+        return result == Executor.NORMAL ? null : result;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + code.name() + ">";
+    }
+}
@@ -0,0 +1,38 @@
+package com.craftinginterpreters.lox.closure;
+
+import com.craftinginterpreters.lox.RuntimeError;
+import com.craftinginterpreters.lox.Symbol;
+import com.craftinginterpreters.lox.Token;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class InstanceValue {
+    private final ClassValue klass;
+    private final Map<Symbol, Object> fields = new HashMap<>();
+
+    InstanceValue(ClassValue klass) {
+        this.klass = klass;
+    }
+
+    Object get(Token name) {
+        if (fields.containsKey(name.symbol)) {
+            return fields.get(name.symbol);
+        }
+
+        FunctionValue method = klass.findMethod(name.symbol);
+        if (method != null) return method.bind(this);
+
+        throw new RuntimeError(name,
+                "Undefined property '" + name.lexeme + "'.");
+    }
+
+    void set(Token name, Object value) {
+        fields.put(name.symbol, value);
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
@@ -0,0 +1,7 @@
+package com.craftinginterpreters.lox.closure;
+
+// Returned by a return statement whose value is a call to a Lox function.
+// The function returning it makes the call once its own frame is gone, so
+// tail calls don't use up the Java stack.
+record TailCall(FunctionValue function, Object[] arguments) {
+}
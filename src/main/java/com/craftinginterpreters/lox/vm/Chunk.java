@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox.vm;
+
+import com.craftinginterpreters.lox.Symbol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class Chunk {
+    byte[] code = new byte[8];
+    int[] lines = new int[8];
+    int count = 0;
+
+    // Filled in from constantList once the function is fully compiled.
+    Object[] constants;
+    private final List<Object> constantList = new ArrayList<>();
+    // Numbers and strings are immutable, so equal ones share a slot.
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+    void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        boolean shareable = value instanceof Double ||
+                value instanceof String || value instanceof Symbol;
+        if (shareable) {
+            Integer index = constantIndices.get(value);
+            if (index != null) return index;
+        }
+
+        constantList.add(value);
+        int index = constantList.size() - 1;
+        if (shareable) constantIndices.put(value, index);
+        return index;
+    }
+
+    void finish() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantList.toArray();
+    }
+}
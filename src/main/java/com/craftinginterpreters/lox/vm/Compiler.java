@@ -0,0 +1,604 @@
+package com.craftinginterpreters.lox.vm;
+
+import com.craftinginterpreters.lox.Expr;
+import com.craftinginterpreters.lox.Lox;
+import com.craftinginterpreters.lox.Stmt;
+import com.craftinginterpreters.lox.Symbol;
+import com.craftinginterpreters.lox.Token;
+import com.craftinginterpreters.lox.TokenType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles a resolved syntax tree to bytecode. The Resolver has already
+// reported scoping errors and marked which variables are globals (depth
+// -1); locals are laid out on the VM stack here, and variables that
+// nested functions close over become upvalues.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_INDEX = 0xffff;
+
+    private enum FunctionType {
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+        SCRIPT
+    }
+
+    private static class Local {
+        final String name;
+        // -1 until the variable's initializer has been compiled.
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private record Upvalue(int index, boolean isLocal) {
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, ObjFunction function,
+                      FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the callee, or the receiver in methods.
+            String name = type == FunctionType.METHOD ||
+                    type == FunctionType.INITIALIZER ? "this" : "";
+            locals.add(new Local(name, 0));
+        }
+    }
+
+    private final VM vm;
+    private FunctionState current = null;
+    private int line = 1;
+    private boolean hadError = false;
+
+    Compiler(VM vm) {
+        this.vm = vm;
+    }
+
+    ObjFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new ObjFunction(null, 0),
+                FunctionType.SCRIPT);
+
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+
+        ObjFunction function = endFunction();
+        return hadError ? null : function;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+
+        emitOp(OpCode.CLASS);
+        emitShort(nameConstant);
+        defineVariable(stmt.name);
+
+        // Keep the class on the stack while its methods are attached.
+        loadVariable(stmt.name, current.scopeDepth == 0);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.symbol == Symbol.INIT
+                    ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+
+            line = method.name.line;
+            emitOp(OpCode.METHOD);
+            emitShort(makeConstant(method.name.symbol));
+        }
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+
+        int loopStart = currentChunk().count;
+        int exitJump = -1;
+        if (stmt.condition != null) {
+            compile(stmt.condition);
+            exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP);
+        }
+
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emitOp(OpCode.POP);
+        }
+        emitLoop(loopStart);
+
+        if (exitJump != -1) {
+            patchJump(exitJump);
+            emitOp(OpCode.POP);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name);
+        // A local function may refer to itself recursively.
+        markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emitOp(OpCode.POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else if (stmt.value instanceof Expr.Call call) {
+            emitCall(call, OpCode.TAIL_CALL);
+        } else {
+            compile(stmt.value);
+            emitOp(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        declareVariable(stmt.name);
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = currentChunk().count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitOp(OpCode.POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emitOp(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        storeVariable(expr.name, expr.depth == -1);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case GREATER -> emitOp(OpCode.GREATER);
+            case GREATER_EQUAL -> emitOp(OpCode.GREATER_EQUAL);
+            case LESS -> emitOp(OpCode.LESS);
+            case LESS_EQUAL -> emitOp(OpCode.LESS_EQUAL);
+            case BANG_EQUAL -> emitOp(OpCode.NOT_EQUAL);
+            case EQUAL_EQUAL -> emitOp(OpCode.EQUAL);
+            case MINUS -> emitOp(OpCode.SUBTRACT);
+            case PLUS -> emitOp(OpCode.ADD);
+            case SLASH -> emitOp(OpCode.DIVIDE);
+            case STAR -> emitOp(OpCode.MULTIPLY);
+            default -> throw new IllegalStateException(
+                    "Unexpected binary operator " + expr.operator.type);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        emitCall(expr, OpCode.CALL);
+        return null;
+    }
+
+    private void emitCall(Expr.Call expr, byte op) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emitOp(op);
+        emitByte((byte) expr.arguments.size());
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY);
+        emitShort(makeConstant(expr.name.symbol));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL);
+        } else if (expr.value.equals(true)) {
+            emitOp(OpCode.TRUE);
+        } else if (expr.value.equals(false)) {
+            emitOp(OpCode.FALSE);
+        } else {
+            emitOp(OpCode.CONSTANT);
+            emitShort(makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        int endJump;
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+        } else {
+            endJump = emitJump(OpCode.JUMP_IF_FALSE);
+        }
+
+        emitOp(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(OpCode.SET_PROPERTY);
+        emitShort(makeConstant(expr.name.symbol));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        loadVariable(expr.keyword, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG -> emitOp(OpCode.NOT);
+            case MINUS -> emitOp(OpCode.NEGATE);
+            default -> throw new IllegalStateException(
+                    "Unexpected unary operator " + expr.operator.type);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        loadVariable(expr.name, expr.depth == -1);
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        FunctionState state = new FunctionState(current,
+                new ObjFunction(stmt.name.lexeme, stmt.params.size()), type);
+        current = state;
+
+        beginScope();
+        for (Token param : stmt.params) {
+            line = param.line;
+            declareVariable(param);
+            markInitialized();
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        ObjFunction function = endFunction();
+        emitOp(OpCode.CLOSURE);
+        emitShort(makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte((byte) (upvalue.isLocal() ? 1 : 0));
+            emitShort(upvalue.index());
+        }
+    }
+
+    private ObjFunction endFunction() {
+        emitReturn();
+
+        ObjFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.finish();
+
+        current = current.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() &&
+                locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emitOp(OpCode.CLOSE_UPVALUE);
+            } else {
+                emitOp(OpCode.POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) return;
+
+        if (current.locals.size() > MAX_INDEX) {
+            error("Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme, -1));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth =
+                current.scopeDepth;
+    }
+
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+
+        emitOp(OpCode.DEFINE_GLOBAL);
+        emitShort(vm.globalSlot(name.symbol));
+    }
+
+    private void loadVariable(Token name, boolean isGlobal) {
+        if (!isGlobal) {
+            int slot = resolveLocal(current, name.lexeme);
+            if (slot != -1) {
+                emitOp(OpCode.GET_LOCAL);
+                emitShort(slot);
+                return;
+            }
+
+            int upvalue = resolveUpvalue(current, name.lexeme);
+            if (upvalue != -1) {
+                emitOp(OpCode.GET_UPVALUE);
+                emitShort(upvalue);
+                return;
+            }
+        }
+
+        emitOp(OpCode.GET_GLOBAL);
+        emitShort(vm.globalSlot(name.symbol));
+    }
+
+    private void storeVariable(Token name, boolean isGlobal) {
+        if (!isGlobal) {
+            int slot = resolveLocal(current, name.lexeme);
+            if (slot != -1) {
+                emitOp(OpCode.SET_LOCAL);
+                emitShort(slot);
+                return;
+            }
+
+            int upvalue = resolveUpvalue(current, name.lexeme);
+            if (upvalue != -1) {
+                emitOp(OpCode.SET_UPVALUE);
+                emitShort(upvalue);
+                return;
+            }
+        }
+
+        emitOp(OpCode.SET_GLOBAL);
+        emitShort(vm.globalSlot(name.symbol));
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        Upvalue upvalue = new Upvalue(index, isLocal);
+        int existing = state.upvalues.indexOf(upvalue);
+        if (existing != -1) return existing;
+
+        if (state.upvalues.size() > MAX_INDEX) {
+            error("Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues.add(upvalue);
+        return state.upvalues.size() - 1;
+    }
+
+    private Chunk currentChunk() {
+        return current.function.chunk;
+    }
+
+    private int makeConstant(Object value) {
+        int constant = currentChunk().addConstant(value);
+        if (constant > MAX_INDEX) {
+            error("Too many constants in one chunk.");
+            return 0;
+        }
+
+        return constant;
+    }
+
+    private void emitByte(byte b) {
+        currentChunk().write(b, line);
+    }
+
+    private void emitOp(byte op) {
+        emitByte(op);
+    }
+
+    private void emitShort(int value) {
+        emitByte((byte) ((value >> 8) & 0xff));
+        emitByte((byte) (value & 0xff));
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(OpCode.GET_LOCAL);
+            emitShort(0);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+
+        emitOp(OpCode.RETURN);
+    }
+
+    private int emitJump(byte op) {
+        emitOp(op);
+        emitShort(MAX_INDEX);
+        return currentChunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the bytecode for the jump offset itself.
+        int jump = currentChunk().count - offset - 2;
+        if (jump > MAX_INDEX) {
+            error("Too much code to jump over.");
+        }
+
+        currentChunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        currentChunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP);
+
+        int offset = currentChunk().count - loopStart + 2;
+        if (offset > MAX_INDEX) error("Loop body too large.");
+
+        emitShort(offset);
+    }
+
+    private void error(String message) {
+        Lox.error(line, message);
+        hadError = true;
+    }
+}
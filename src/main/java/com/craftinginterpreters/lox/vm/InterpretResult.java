@@ -0,0 +1,7 @@
+package com.craftinginterpreters.lox.vm;
+
+public enum InterpretResult {
+    OK,
+    COMPILE_ERROR,
+    RUNTIME_ERROR
+}
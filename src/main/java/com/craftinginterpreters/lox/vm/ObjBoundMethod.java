@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox.vm;
+
+class ObjBoundMethod {
+    final ObjInstance receiver;
+    final ObjClosure method;
+
+    ObjBoundMethod(ObjInstance receiver, ObjClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package com.craftinginterpreters.lox.vm;
+
+import com.craftinginterpreters.lox.Symbol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class ObjClass {
+    final String name;
+    final Map<Symbol, ObjClosure> methods = new HashMap<>();
+    ObjClosure initializer = null;
+
+    ObjClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
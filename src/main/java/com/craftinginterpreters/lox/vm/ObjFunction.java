@@ -0,0 +1,19 @@
+package com.craftinginterpreters.lox.vm;
+
+class ObjFunction {
+    final String name;
+    final int arity;
+    int upvalueCount = 0;
+    final Chunk chunk = new Chunk();
+
+    ObjFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
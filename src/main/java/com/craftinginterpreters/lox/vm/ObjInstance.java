@@ -0,0 +1,20 @@
+package com.craftinginterpreters.lox.vm;
+
+import com.craftinginterpreters.lox.Symbol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class ObjInstance {
+    final ObjClass klass;
+    final Map<Symbol, Object> fields = new HashMap<>();
+
+    ObjInstance(ObjClass klass) {
+        this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
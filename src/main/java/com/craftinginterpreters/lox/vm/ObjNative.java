@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox.vm;
+
+abstract class ObjNative {
+    final int arity;
+
+    ObjNative(int arity) {
+        this.arity = arity;
+    }
+
+    abstract Object call(Object[] arguments);
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,14 @@
+package com.craftinginterpreters.lox.vm;
+
+class ObjUpvalue {
+    // Index of the captured variable on the VM stack while it is still
+    // open, or -1 once it has been closed over and lives in closed.
+    int location;
+    Object closed = null;
+    // Next open upvalue, ordered by descending stack location.
+    ObjUpvalue next = null;
+
+    ObjUpvalue(int location) {
+        this.location = location;
+    }
+}
@@ -0,0 +1,49 @@
+package com.craftinginterpreters.lox.vm;
+
+// Operands follow the opcode in the chunk. Constant, local, global and
+// upvalue indices as well as jump offsets are two bytes, big-endian;
+// argument counts are one byte.
+final class OpCode {
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;
+    static final byte SET_LOCAL = 6;
+    static final byte GET_GLOBAL = 7;
+    static final byte DEFINE_GLOBAL = 8;
+    static final byte SET_GLOBAL = 9;
+    static final byte GET_UPVALUE = 10;
+    static final byte SET_UPVALUE = 11;
+    static final byte GET_PROPERTY = 12;
+    static final byte SET_PROPERTY = 13;
+    static final byte EQUAL = 14;
+    static final byte NOT_EQUAL = 15;
+    static final byte GREATER = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS = 18;
+    static final byte LESS_EQUAL = 19;
+    static final byte ADD = 20;
+    static final byte SUBTRACT = 21;
+    static final byte MULTIPLY = 22;
+    static final byte DIVIDE = 23;
+    static final byte NOT = 24;
+    static final byte NEGATE = 25;
+    static final byte PRINT = 26;
+    static final byte JUMP = 27;
+    static final byte JUMP_IF_FALSE = 28;
+    static final byte LOOP = 29;
+    static final byte CALL = 30;
+    static final byte CLOSURE = 31;
+    static final byte CLOSE_UPVALUE = 32;
+    static final byte RETURN = 33;
+    static final byte CLASS = 34;
+    static final byte METHOD = 35;
+    // A call whose result the current function returns. The callee takes
+    // over the caller's frame.
+    static final byte TAIL_CALL = 36;
+
+    private OpCode() {
+    }
+}
@@ -0,0 +1,538 @@
+package com.craftinginterpreters.lox.vm;
+
+import com.craftinginterpreters.lox.Stmt;
+import com.craftinginterpreters.lox.Symbol;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A stack-based virtual machine for the bytecode produced by Compiler.
+// It keeps its globals between calls to interpret(), which the REPL
+// relies on.
+public class VM {
+    private static final int FRAMES_MAX = 1 << 16;
+
+    // How deeply calls may nest before the VM reports a stack overflow.
+    private final int maxFrames;
+
+    // Marks a global slot that has been compiled but not yet defined.
+    private static final Object UNDEFINED = new Object();
+
+    private static class CallFrame {
+        ObjClosure closure;
+        int ip;
+        // Stack index of the frame's slot zero.
+        int slots;
+    }
+
+    private static class RuntimeError extends RuntimeException {
+        RuntimeError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private ObjUpvalue openUpvalues = null;
+
+    // The slot of each global name compiled so far.
+    private final Map<Symbol, Integer> globalSlots = new HashMap<>();
+    private Symbol[] globalNames = new Symbol[0];
+    private int globalCount = 0;
+    private Object[] globals = new Object[0];
+
+    public VM() {
+        this(FRAMES_MAX);
+    }
+
+    public VM(int maxFrames) {
+        this.maxFrames = maxFrames;
+        defineNative("clock", new ObjNative(0) {
+            @Override
+            Object call(Object[] arguments) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+        });
+    }
+
+    public InterpretResult interpret(List<Stmt> statements) {
+        ObjFunction function = new Compiler(this).compile(statements);
+        if (function == null) return InterpretResult.COMPILE_ERROR;
+
+        ObjClosure closure = new ObjClosure(function);
+        push(closure);
+        call(closure, 0);
+        return run();
+    }
+
+    int globalSlot(Symbol name) {
+        Integer existing = globalSlots.get(name);
+        if (existing != null) return existing;
+
+        int slot = globalCount++;
+        if (slot == globals.length) {
+            int capacity = Math.max(16, globals.length * 2);
+            globalNames = Arrays.copyOf(globalNames, capacity);
+            globals = Arrays.copyOf(globals, capacity);
+            Arrays.fill(globals, slot, capacity, UNDEFINED);
+        }
+        globalSlots.put(name, slot);
+        globalNames[slot] = name;
+        return slot;
+    }
+
+    private void defineNative(String name, ObjNative function) {
+        int slot = globalSlot(Symbol.of(name));
+        globals[slot] = function;
+    }
+
+    private InterpretResult run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.slots;
+
+        try {
+            for (;;) {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT: {
+                        push(constants[readShort(code, ip)]);
+                        ip += 2;
+                        break;
+                    }
+                    case OpCode.NIL: push(null); break;
+                    case OpCode.TRUE: push(true); break;
+                    case OpCode.FALSE: push(false); break;
+                    case OpCode.POP: stackTop--; break;
+                    case OpCode.GET_LOCAL: {
+                        push(stack[base + readShort(code, ip)]);
+                        ip += 2;
+                        break;
+                    }
+                    case OpCode.SET_LOCAL: {
+                        stack[base + readShort(code, ip)] = peek(0);
+                        ip += 2;
+                        break;
+                    }
+                    case OpCode.GET_GLOBAL: {
+                        int slot = readShort(code, ip);
+                        ip += 2;
+                        Object value = globals[slot];
+                        if (value == UNDEFINED) throw undefinedVariable(slot);
+                        push(value);
+                        break;
+                    }
+                    case OpCode.DEFINE_GLOBAL: {
+                        globals[readShort(code, ip)] = pop();
+                        ip += 2;
+                        break;
+                    }
+                    case OpCode.SET_GLOBAL: {
+                        int slot = readShort(code, ip);
+                        ip += 2;
+                        if (globals[slot] == UNDEFINED) {
+                            throw undefinedVariable(slot);
+                        }
+                        globals[slot] = peek(0);
+                        break;
+                    }
+                    case OpCode.GET_UPVALUE: {
+                        ObjUpvalue upvalue =
+                                frame.closure.upvalues[readShort(code, ip)];
+                        ip += 2;
+                        push(upvalue.location != -1
+                                ? stack[upvalue.location] : upvalue.closed);
+                        break;
+                    }
+                    case OpCode.SET_UPVALUE: {
+                        ObjUpvalue upvalue =
+                                frame.closure.upvalues[readShort(code, ip)];
+                        ip += 2;
+                        if (upvalue.location != -1) {
+                            stack[upvalue.location] = peek(0);
+                        } else {
+                            upvalue.closed = peek(0);
+                        }
+                        break;
+                    }
+                    case OpCode.GET_PROPERTY: {
+                        Symbol name = (Symbol) constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(peek(0) instanceof ObjInstance instance)) {
+                            throw new RuntimeError(
+                                    "Only instances have properties.");
+                        }
+
+                        Object value =
+                                instance.fields.getOrDefault(name, UNDEFINED);
+                        if (value == UNDEFINED) {
+                            ObjClosure method = instance.klass.methods.get(name);
+                            if (method == null) {
+                                throw new RuntimeError(
+                                        "Undefined property '" + name + "'.");
+                            }
+                            value = new ObjBoundMethod(instance, method);
+                        }
+                        stack[stackTop - 1] = value;
+                        break;
+                    }
+                    case OpCode.SET_PROPERTY: {
+                        Symbol name = (Symbol) constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(peek(1) instanceof ObjInstance instance)) {
+                            throw new RuntimeError(
+                                    "Only instances have fields.");
+                        }
+
+                        Object value = pop();
+                        instance.fields.put(name, value);
+                        stack[stackTop - 1] = value;
+                        break;
+                    }
+                    case OpCode.EQUAL: {
+                        Object b = pop();
+                        stack[stackTop - 1] = isEqual(stack[stackTop - 1], b);
+                        break;
+                    }
+                    case OpCode.NOT_EQUAL: {
+                        Object b = pop();
+                        stack[stackTop - 1] = !isEqual(stack[stackTop - 1], b);
+                        break;
+                    }
+                    case OpCode.GREATER: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] > b;
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] >= b;
+                        break;
+                    }
+                    case OpCode.LESS: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] < b;
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] <= b;
+                        break;
+                    }
+                    case OpCode.ADD: {
+                        Object b = peek(0);
+                        Object a = peek(1);
+                        if (a instanceof Double && b instanceof Double) {
+                            stackTop--;
+                            stack[stackTop - 1] = (double) a + (double) b;
+                        } else if (a instanceof String && b instanceof String) {
+                            stackTop--;
+                            stack[stackTop - 1] = (String) a + (String) b;
+                        } else {
+                            throw new RuntimeError(
+                                    "Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OpCode.SUBTRACT: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] - b;
+                        break;
+                    }
+                    case OpCode.MULTIPLY: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] * b;
+                        break;
+                    }
+                    case OpCode.DIVIDE: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] / b;
+                        break;
+                    }
+                    case OpCode.NOT: {
+                        stack[stackTop - 1] = isFalsey(stack[stackTop - 1]);
+                        break;
+                    }
+                    case OpCode.NEGATE: {
+                        if (!(peek(0) instanceof Double)) {
+                            throw new RuntimeError("Operand must be a number.");
+                        }
+                        stack[stackTop - 1] = -(double) stack[stackTop - 1];
+                        break;
+                    }
+                    case OpCode.PRINT: {
+                        System.out.println(stringify(pop()));
+                        break;
+                    }
+                    case OpCode.JUMP: {
+                        ip += 2 + readShort(code, ip);
+                        break;
+                    }
+                    case OpCode.JUMP_IF_FALSE: {
+                        int offset = readShort(code, ip);
+                        ip += 2;
+                        if (isFalsey(peek(0))) ip += offset;
+                        break;
+                    }
+                    case OpCode.LOOP: {
+                        ip += 2 - readShort(code, ip);
+                        break;
+                    }
+                    case OpCode.CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        callValue(peek(argCount), argCount);
+
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        base = frame.slots;
+                        break;
+                    }
+                    case OpCode.TAIL_CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        // The callee and its arguments replace the frame,
+                        // so the call returns straight to our caller.
+                        closeUpvalues(base);
+                        System.arraycopy(stack, stackTop - argCount - 1,
+                                stack, base, argCount + 1);
+                        stackTop = base + argCount + 1;
+                        frameCount--;
+                        callValue(stack[base], argCount);
+
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        base = frame.slots;
+                        break;
+                    }
+                    case OpCode.CLOSURE: {
+                        ObjFunction function =
+                                (ObjFunction) constants[readShort(code, ip)];
+                        ip += 2;
+                        ObjClosure closure = new ObjClosure(function);
+                        for (int i = 0; i < closure.upvalues.length; i++) {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = readShort(code, ip);
+                            ip += 2;
+                            closure.upvalues[i] = isLocal
+                                    ? captureUpvalue(base + index)
+                                    : frame.closure.upvalues[index];
+                        }
+                        push(closure);
+                        break;
+                    }
+                    case OpCode.CLOSE_UPVALUE: {
+                        closeUpvalues(stackTop - 1);
+                        stackTop--;
+                        break;
+                    }
+                    case OpCode.RETURN: {
+                        Object result = pop();
+                        closeUpvalues(base);
+                        frameCount--;
+                        if (frameCount == 0) {
+                            stackTop = 0;
+                            return InterpretResult.OK;
+                        }
+
+                        stackTop = base;
+                        push(result);
+
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        ip = frame.ip;
+                        base = frame.slots;
+                        break;
+                    }
+                    case OpCode.CLASS: {
+                        push(new ObjClass((String) constants[readShort(code, ip)]));
+                        ip += 2;
+                        break;
+                    }
+                    case OpCode.METHOD: {
+                        Symbol name = (Symbol) constants[readShort(code, ip)];
+                        ip += 2;
+                        ObjClosure method = (ObjClosure) peek(0);
+                        ObjClass klass = (ObjClass) peek(1);
+                        klass.methods.put(name, method);
+                        if (name == Symbol.INIT) klass.initializer = method;
+                        stackTop--;
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException(
+                                "Unknown opcode " + code[ip - 1]);
+                }
+            }
+        } catch (RuntimeError error) {
+            int line = frame.closure.function.chunk.lines[ip - 1];
+            System.err.println(error.getMessage() + "\n[line " + line + "]");
+            resetStack();
+            return InterpretResult.RUNTIME_ERROR;
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void push(Object value) {
+        if (stackTop == stack.length) {
+            stack = Arrays.copyOf(stack, stackTop * 2);
+        }
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        return stack[--stackTop];
+    }
+
+    private Object peek(int distance) {
+        return stack[stackTop - 1 - distance];
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, stackTop, null);
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure closure) {
+            call(closure, argCount);
+        } else if (callee instanceof ObjBoundMethod bound) {
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof ObjClass klass) {
+            stack[stackTop - argCount - 1] = new ObjInstance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw arityMismatch(0, argCount);
+            }
+        } else if (callee instanceof ObjNative function) {
+            if (argCount != function.arity) {
+                throw arityMismatch(function.arity, argCount);
+            }
+
+            Object[] arguments =
+                    Arrays.copyOfRange(stack, stackTop - argCount, stackTop);
+            Object result = function.call(arguments);
+            stackTop -= argCount;
+            stack[stackTop - 1] = result;
+        } else {
+            throw new RuntimeError("Can only call functions and classes.");
+        }
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw arityMismatch(closure.function.arity, argCount);
+        }
+
+        if (frameCount == maxFrames) {
+            throw new RuntimeError("Stack overflow.");
+        }
+
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.slots = stackTop - argCount - 1;
+    }
+
+    private ObjUpvalue captureUpvalue(int location) {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.location == location) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(location);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void checkNumberOperands() {
+        if (peek(0) instanceof Double && peek(1) instanceof Double) return;
+
+        throw new RuntimeError("Operands must be numbers.");
+    }
+
+    private RuntimeError undefinedVariable(int slot) {
+        return new RuntimeError(
+                "Undefined variable '" + globalNames[slot] + "'.");
+    }
+
+    private RuntimeError arityMismatch(int arity, int argCount) {
+        return new RuntimeError("Expected " + arity +
+                " arguments but got " + argCount + ".");
+    }
+
+    private static boolean isFalsey(Object value) {
+        return value == null || value.equals(false);
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+
+        return a.equals(b);
+    }
+
+    private static String stringify(Object object) {
+        if (object == null) return "nil";
+
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+
+        return object.toString();
+    }
+}
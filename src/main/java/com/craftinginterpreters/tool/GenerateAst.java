@@ -13,29 +13,47 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
+                "Assign   : Token name, Expr value" +
+                          " | int depth = -1, int slot = -1," +
+                          " boolean cell = false",
+                "Binary   : Expr left, Token operator, Expr right" +
+                          " | BinaryNode node = BinaryNode.UNINITIALIZED",
                 "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
+                "Get      : Expr object, Token name" +
+                          " | PropertyCache cache = new PropertyCache()",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
                 "Logical  : Expr left, Token operator, Expr right",
-                "Set      : Expr object, Token name, Expr value",
-                "This     : Token keyword",
+                "Set      : Expr object, Token name, Expr value" +
+                          " | PropertyCache cache = new PropertyCache()",
+                "This     : Token keyword" +
+                          " | int depth = -1, int slot = -1",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name" +
+                          " | int depth = -1, int slot = -1," +
+                          " boolean cell = false"
         ));
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, List<Stmt.Function> methods",
+                "Block      : List<Stmt> statements" +
+                            " | int slotCount = 0, boolean inlined = false",
+                "Class      : Token name, List<Stmt.Function> methods" +
+                            " | int slot = -1, boolean cell = false",
                 "Expression : Expr expression",
+                "For        : Stmt initializer, Expr condition," +
+                            " Expr increment, Stmt body" +
+                            " | int slotCount = 0, boolean inlined = false",
                 "Function   : Token name, List<Token> params," +
-                            " List<Stmt> body",
+                            " List<Stmt> body" +
+                            " | int slot = -1, int slotCount = 0," +
+                            " boolean cell = false," +
+                            " List<Capture> captures = List.of()," +
+                            " int[] cellParams = new int[0]",
                 "If         : Expr condition, Stmt thenBranch," +
                             " Stmt elseBranch",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
+                "Var        : Token name, Expr initializer" +
+                            " | int slot = -1, boolean cell = false",
                 "While      : Expr condition, Stmt body"
         ));
     }
@@ -49,20 +67,23 @@ public class GenerateAst {
         writer.println();
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        writer.println("public abstract class " + baseName + " {");
 
         defineVisitor(writer, baseName, types);
 
         // The AST classes.
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fieldLists = type.split(":")[1].split("\\|");
+            String fields = fieldLists[0].trim();
+            String mutable = fieldLists.length > 1
+                    ? fieldLists[1].trim() : null;
+            defineType(writer, baseName, className, fields, mutable);
         }
 
         // The base accept() method.
         writer.println();
-        writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+        writer.println("  public abstract <R> R accept(Visitor<R> visitor);");
 
         writer.println("}");
         writer.close();
@@ -70,7 +91,7 @@ public class GenerateAst {
 
     private static void defineVisitor(
             PrintWriter writer, String baseName, List<String> types) {
-        writer.println("  interface Visitor<R> {");
+        writer.println("  public interface Visitor<R> {");
 
         for (String type : types) {
             String typeName = type.split(":")[0].trim();
@@ -83,8 +104,8 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
-        writer.println("  static class " + className + " extends " +
+            String className, String fieldList, String mutableList) {
+        writer.println("  public static class " + className + " extends " +
                 baseName + " {");
 
         // Constructor.
@@ -102,7 +123,7 @@ public class GenerateAst {
         // Visitor pattern.
         writer.println();
         writer.println("    @Override");
-        writer.println("    <R> R accept(Visitor<R> visitor) {");
+        writer.println("    public <R> R accept(Visitor<R> visitor) {");
         writer.println("      return visitor.visit" +
                 className + baseName + "(this);");
         writer.println("    }");
@@ -110,7 +131,14 @@ public class GenerateAst {
         // Fields.
         writer.println();
         for (String field : fields) {
-            writer.println("    final " + field + ";");
+            writer.println("    public final " + field + ";");
+        }
+
+        // Fields filled in after parsing, by the Resolver or at runtime.
+        if (mutableList != null) {
+            for (String field : mutableList.split(", ")) {
+                writer.println("    public " + field + ";");
+            }
         }
 
         writer.println("  }");
@@ -1,13 +1,22 @@
 package com.craftinginterpreters.lox;
 
+import com.craftinginterpreters.lox.closure.ClosureEngine;
+import com.craftinginterpreters.lox.vm.VM;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.FutureTask;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -22,6 +31,143 @@ class InterpreterTest {
         runExpectingOutput(program, "one\ntrue\n3\n");
     }
 
+    @Test
+    void testFramesOfReenteredFunctions() {
+        var program = """
+                fun fact(n) { if (n <= 1) return 1; return n * fact(n - 1); }
+                fun inc(n) { return n + 1; }
+                fun pair(a, b) { return a + b * 10; }
+                class Acc {
+                    add(a, b) { return a + b; }
+                }
+                fun keep(a, b) {
+                    fun get() { return a + b; }
+                    return get;
+                }
+                var acc = Acc();
+                print fact(10);
+                print inc(inc(inc(1)));
+                print pair(pair(1, 2), pair(3, 4));
+                print acc.add(acc.add(1, 2), acc.add(acc.add(3, 4), 5));
+                var first = keep(1, 2);
+                var second = keep("a", "b");
+                print first();
+                print second();
+                """;
+        runExpectingOutput(program, "3628800\n4\n451\n15\n3\nab\n");
+    }
+
+    @Test
+    void testFrameReusedAfterErrorInArguments() {
+        var stdout = System.out;
+        var stderr = System.err;
+        try {
+            var out = new ByteArrayOutputStream();
+            var err = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(out));
+            System.setErr(new PrintStream(err));
+
+            // Each chunk runs on its own, like lines in the REPL, so the
+            // frames taken before an error are reused by later calls.
+            var interpreter = new Interpreter();
+            for (String chunk : List.of("""
+                            fun join(a, b) { return a + b; }
+                            class Box {
+                                join(a, b) { return a + b; }
+                            }
+                            var box = Box();
+                            """,
+                    "print join(1, nil + 1);",
+                    "print box.join(1, -\"x\");",
+                    """
+                            print join("a", "b");
+                            print join(2, 3);
+                            print box.join("c", "d");
+                            print box.join(4, 5);
+                            """)) {
+                var statements =
+                        new Parser(new Scanner(chunk).scanTokens()).parse();
+                new Resolver(interpreter).resolve(statements);
+                interpreter.interpret(statements);
+            }
+
+            Assertions.assertEquals("ab\n5\ncd\n9\n", out.toString());
+            Assertions.assertEquals(
+                    "Operands must be two numbers or two strings.\n[line 1]\n" +
+                            "Operand must be a number.\n[line 1]\n",
+                    err.toString());
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            Lox.hadRuntimeError = false;
+        }
+    }
+
+    @Test
+    void testNativeEntryPoints() {
+        var program = """
+                print zero();
+                print one(1);
+                print two(1, "b");
+                print three(1, 2, 3);
+                print two(1);
+                """;
+        var stdout = System.out;
+        var stderr = System.err;
+        try {
+            var out = new ByteArrayOutputStream();
+            var err = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(out));
+            System.setErr(new PrintStream(err));
+
+            var interpreter = new Interpreter();
+            interpreter.globals.define("zero", new Native(0));
+            interpreter.globals.define("one", new Native(1));
+            interpreter.globals.define("two", new Native(2));
+            interpreter.globals.define("three", new Native(3));
+
+            var statements =
+                    new Parser(new Scanner(program).scanTokens()).parse();
+            new Resolver(interpreter).resolve(statements);
+            interpreter.interpret(statements);
+
+            Assertions.assertEquals(
+                    "call0\ncall1 1\ncall2 1 b\ncall [1, 2, 3]\n",
+                    out.toString());
+            Assertions.assertEquals("Expected 2 arguments but got 1.\n" +
+                    "[line 5]\n", err.toString());
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            Lox.hadRuntimeError = false;
+        }
+    }
+
+    // Tells which entry point the interpreter called it through.
+    private record Native(int arity) implements LoxCallable {
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return "call " + arguments.stream().map(Interpreter::stringify)
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public Object call0(Interpreter interpreter) {
+            return "call0";
+        }
+
+        @Override
+        public Object call1(Interpreter interpreter, Object a) {
+            return "call1 " + Interpreter.stringify(a);
+        }
+
+        @Override
+        public Object call2(Interpreter interpreter, Object a, Object b) {
+            return "call2 " + Interpreter.stringify(a) + " " +
+                    Interpreter.stringify(b);
+        }
+    }
+
     @Test
     void testGlobalVariableDecl() {
         var program = """
@@ -42,6 +188,26 @@ class InterpreterTest {
         runExpectingOutput(program, "2\n");
     }
 
+    @Test
+    void testGlobalForwardReferenceAndRedefinition() {
+        var program = """
+                fun first() {
+                  return second();
+                }
+                fun second() {
+                  return g;
+                }
+
+                var g = 1;
+                print first();
+                var g = 2;
+                print first();
+                g = 3;
+                print first();
+                """;
+        runExpectingOutput(program, "1\n2\n3\n");
+    }
+
     @Test
     void testNestedBlocks() {
         var program = """
@@ -138,6 +304,28 @@ class InterpreterTest {
         runExpectingOutput(program, result.stream().map(Objects::toString).collect(Collectors.joining("\n")) + "\n");
     }
 
+    @Test
+    void testPolymorphicOperatorSite() {
+        var program = """
+                fun add(a, b) {
+                  return a + b;
+                }
+
+                for (var i = 0; i < 3; i = i + 1) {
+                  print add(i, 1);
+                }
+                print add("a", "b");
+                print add(2, 3);
+
+                fun less(a, b) {
+                  return a < b;
+                }
+                print less(1, 2);
+                print less(2, 1);
+                """;
+        runExpectingOutput(program, "1\n2\n3\nab\n5\ntrue\nfalse\n");
+    }
+
     @Test
     void testClosure() {
         var program = """
@@ -158,6 +346,35 @@ class InterpreterTest {
         runExpectingOutput(program, "1\n2\n");
     }
 
+    @Test
+    void testClosureOverBlockLocals() {
+        var program = """
+                var a = "global";
+                {
+                  fun showA() {
+                    print a;
+                  }
+
+                  showA();
+                  var a = "block";
+                  showA();
+                  print a;
+                }
+
+                fun makeAdder() {
+                  var x = 1;
+                  fun add(y) {
+                    return x + y;
+                  }
+                  x = 10;
+                  return add;
+                }
+
+                print makeAdder()(5);
+                """;
+        runExpectingOutput(program, "global\nglobal\nblock\n15\n");
+    }
+
     @Test
     void testBasicClass() {
         var program = """
@@ -221,22 +438,562 @@ class InterpreterTest {
         runExpectingOutput(program, "Egotist instance\n");
     }
 
+    @Test
+    void testReturnFromNestedLoops() {
+        var program = """
+                fun find(limit) {
+                  for (var i = 0; i < limit; i = i + 1) {
+                    var j = 0;
+                    while (j < i) {
+                      { if (i * j == 12) return i + j; }
+                      j = j + 1;
+                    }
+                  }
+                  print "none";
+                }
+                print find(10);
+                print find(3);
+                """;
+        runExpectingOutput(program, "7\nnone\nnil\n");
+    }
+
+    @Test
+    void testNumbersInLocalsArgumentsAndReturns() {
+        var program = """
+                fun scale(x, factor) { return -x * factor; }
+                fun run() {
+                  var total = 0;
+                  var reader;
+                  {
+                    var n = 1;
+                    fun read() { return n; }
+                    reader = read;
+                    for (var i = 0; i < 5; i = i + 1) {
+                      total = total + scale(i, 2);
+                      n = n + total;
+                    }
+                  }
+                  print total;
+                  print reader();
+                  total = "text";
+                  print total + "!";
+                  return (total == "text") == (1 == 1);
+                }
+                print run();
+                """;
+        runExpectingOutput(program, "-20\n-39\ntext!\ntrue\n");
+    }
+
+    @Test
+    void testLongConcatenations() {
+        var program = """
+                var line = "0123456789";
+                var text = "";
+                for (var i = 0; i < 100; i = i + 1) {
+                  text = text + line;
+                }
+                var copy = "";
+                for (var i = 0; i < 10; i = i + 1) {
+                  copy = copy + (line + line + line + line + line) + (line + line + line + line + line);
+                }
+                print text == copy;
+                print text == copy + "!";
+                print text + "!" == copy + "!";
+                print (line + line + line + line + line + line + line) == "0123456789" + "0123456789" + "0123456789" + "0123456789" + "0123456789" + "0123456789" + "0123456789";
+                print text == 1;
+                print line + line + line + line + line + line + line;
+                """;
+        runExpectingOutput(program,
+                "true\nfalse\ntrue\ntrue\nfalse\n" + "0123456789".repeat(7) + "\n");
+    }
+
+    @Test
+    void testFieldsInDifferentOrders() {
+        var program = """
+                class Point {}
+                var a = Point();
+                a.x = 1;
+                a.y = 2;
+                var b = Point();
+                b.y = 3;
+                b.x = 4;
+                b.z = 5;
+                a.x = a.x + 10;
+                print a.x + a.y;
+                print b.x + b.y + b.z;
+                print b.y;
+                """;
+        runExpectingOutput(program, "13\n12\n3\n");
+    }
+
+    @Test
+    void testPropertySitesAcrossClasses() {
+        var program = """
+                class A { name() { return "A"; } }
+                class B { name() { return "B"; } }
+                class C { name() { return "C"; } }
+                class D { name() { return "D"; } }
+                class E { name() { return "E"; } }
+                fun describe(o) {
+                  var bound = o.name;
+                  return o.name() + bound();
+                }
+                var shadowed = C();
+                shadowed.name = "!";
+                var all = "";
+                for (var i = 0; i < 2; i = i + 1) {
+                  all = all + describe(A()) + describe(B());
+                  all = all + describe(D()) + describe(E());
+                  var c = C();
+                  all = all + c.name() + shadowed.name;
+                }
+                print all;
+                """;
+        runExpectingOutput(program,
+                "AABBDDEEC!".repeat(2) + "\n");
+    }
+
+    @Test
+    void testCompiledFunctionBodies() {
+        var program = """
+                var total = 0;
+                fun sum(n) {
+                  var i = 0;
+                  while (i < n) {
+                    var step = i > 2 and i < 5 or i == 0;
+                    if (!step) total = total + i; else { var skip = -1; total = total + skip; }
+                    i = i + 1;
+                  }
+                  return total;
+                }
+                fun label(n) {
+                  if (n == nil) return "nil";
+                  return "n" + "=" + label(nil);
+                }
+                class Box {}
+                fun fill(box) {
+                  box.value = sum(6);
+                  return box.value;
+                }
+                fun twice(f) {
+                  return f() + f();
+                }
+                fun one() { return 1; }
+
+                print sum(6);
+                print label(1);
+                print fill(Box());
+                print twice(one);
+                fun one() { return "one"; }
+                print twice(one);
+                print twice(clock) > 0;
+                """;
+        runExpectingOutput(program, "5\nn=nil\n10\n2\noneone\ntrue\n");
+    }
+
+    @Test
+    void testProgramFromCache() throws IOException {
+        var program = """
+                var greeting = "hi";
+                fun counter() {
+                    var n = 0;
+                    fun next() { n = n + 1; return n; }
+                    return next;
+                }
+                class Box {
+                    init(v) { this.v = v; }
+                    get() { { var w = this.v; return w * 2; } }
+                }
+                var next = counter();
+                next();
+                print greeting;
+                print next();
+                print Box(1.5).get();
+                if (nil) print "no"; else print !true;
+                """;
+        var statements = new Parser(new Scanner(program)).parse();
+        new Resolver(new Interpreter()).resolve(statements);
+
+        var directory = Files.createTempDirectory("lox-cache");
+        var cache = new AstCache(directory);
+        cache.store("program", statements);
+
+        // A fresh interpreter hands out its own global slots.
+        var data = new ByteArrayOutputStream();
+        var interpreter = new Interpreter(new PrintStream(data));
+        interpreter.globals.define("padding", null);
+        var cached = cache.load("program", interpreter.globals);
+
+        interpreter.interpret(cached);
+        Assertions.assertEquals("hi\n2\n3\nfalse\n", data.toString());
+    }
+
+    @Test
+    void testCacheKeyIsOfParsedBytes() throws IOException {
+        var cache = new AstCache(Files.createTempDirectory("lox-cache"));
+        var before = "print 1;".getBytes(StandardCharsets.UTF_8);
+        var after = "print 2;".getBytes(StandardCharsets.UTF_8);
+        Assertions.assertEquals(cache.key(before), cache.key(before.clone()));
+        Assertions.assertNotEquals(cache.key(before), cache.key(after));
+
+        // The program kept is the one parsed from the bytes that were
+        // hashed, even if the file has changed since.
+        var statements = new Parser(new Scanner(new InputStreamReader(
+                new ByteArrayInputStream(before), StandardCharsets.UTF_8)))
+                .parse();
+        var data = new ByteArrayOutputStream();
+        var interpreter = new Interpreter(new PrintStream(data));
+        new Resolver(interpreter).resolve(statements);
+        cache.store(cache.key(before), statements);
+
+        Assertions.assertNull(cache.load(cache.key(after), interpreter.globals));
+        interpreter.interpret(cache.load(cache.key(before), interpreter.globals));
+        Assertions.assertEquals("1\n", data.toString());
+    }
+
+    @Test
+    void testConstantExpressions() {
+        var program = """
+                print 1 + 2 * 3;
+                print "a" + "b" == "ab";
+                print !nil and 2 < 3;
+                print nil or "x";
+                print -(4 / 2);
+                print 1 == "1";
+                if (false) print "no"; else print "yes";
+                while (false) print "never";
+                fun f() {
+                    if (true) { return 1; } else { return 2; }
+                    print "dead";
+                }
+                print f();
+                """;
+        runExpectingOutput(program,
+                "7\ntrue\ntrue\nx\n-2\nfalse\nyes\n1\n");
+    }
+
+    @Test
+    void testFoldingKeepsRuntimeErrors() {
+        var program = """
+                print 1 + 1;
+                print "a" - (1 + 2);
+                """;
+        var statements = new Parser(new Scanner(program)).parse();
+        var out = new ByteArrayOutputStream();
+        var interpreter = new Interpreter(new PrintStream(out));
+        new Resolver(interpreter).resolve(statements);
+        statements = new Optimizer().optimize(statements);
+
+        var stderr = System.err;
+        try {
+            var err = new ByteArrayOutputStream();
+            System.setErr(new PrintStream(err));
+            interpreter.interpret(statements);
+            Assertions.assertEquals("2\n", out.toString());
+            Assertions.assertEquals("Operands must be numbers.\n[line 2]\n",
+                    err.toString());
+        } finally {
+            System.setErr(stderr);
+            Lox.hadRuntimeError = false;
+        }
+    }
+
+    @Test
+    void testForLoopScopes() {
+        var program = """
+                var a = nil;
+                var b = nil;
+                for (var i = 0; i < 2; i = i + 1) {
+                    var j = i;
+                    fun show() { print i + j; }
+                    if (a == nil) a = show; else b = show;
+                }
+                a();
+                b();
+                for (var i = 0; i < 3; i = i + 1) {
+                    var k;
+                    print k;
+                    k = i;
+                }
+                fun find(n) {
+                    for (var k = 0; ; k = k + 1) { if (k * k >= n) return k; }
+                }
+                print find(50);
+                """;
+        runExpectingOutput(program, "2\n3\nnil\nnil\nnil\n8\n");
+    }
+
+    @Test
+    void testInlinedScopes() {
+        var program = """
+                fun f(n) {
+                    var a = "a";
+                    { var a = n; { var b = a + 1; print b; } }
+                    { var c; print c; c = 2; }
+                    { var d = a; print d; }
+                    {
+                        var e = n * 2;
+                        { var n = e + 1; print n; }
+                        fun show() { print e; }
+                        return show;
+                    }
+                }
+                f(1)();
+                {
+                    var x = 10;
+                    for (var i = 0; i < 2; i = i + 1) { var y = x + i; print y; }
+                }
+                """;
+        runExpectingOutput(program, "2\nnil\na\n3\n2\n10\n11\n");
+    }
+
+    @Test
+    void testFlatClosures() {
+        var program = """
+                fun outer(n) {
+                    var unused = "big";
+                    var step = 2;
+                    fun countdown(k) {
+                        if (k <= 0) return 0;
+                        return k + countdown(k - step);
+                    }
+                    fun bump() { n = n + 1; return n; }
+                    fun chain() {
+                        fun inner() { return step + bump(); }
+                        return inner;
+                    }
+                    print countdown(5);
+                    return chain();
+                }
+                var f = outer(10);
+                print f();
+                print f();
+                class Node {
+                    init(value) { this.value = value; }
+                    next() { return Node(this.value + 1); }
+                    adder() {
+                        fun add(x) { return this.value + x; }
+                        return add;
+                    }
+                }
+                print Node(1).next().adder()(40);
+                """;
+        runExpectingOutput(program, "9\n13\n14\n42\n");
+    }
+
+    @Test
+    void testClosuresCaptureOnlyWhatTheyUse() {
+        var program = """
+                fun outer(a) {
+                    var unused = "big";
+                    var b = 1;
+                    var c = 2;
+                    fun inner() { return b; }
+                    fun later() { c = c + a; }
+                    return inner;
+                }
+                """;
+        var statements = new Parser(new Scanner(program)).parse();
+        new Resolver(new Interpreter()).resolve(statements);
+
+        var outer = (Stmt.Function) statements.get(0);
+        var inner = (Stmt.Function) outer.body.get(3);
+        var later = (Stmt.Function) outer.body.get(4);
+        Assertions.assertEquals(List.of(new Capture(0, 2)), inner.captures);
+        Assertions.assertEquals(2, later.captures.size());
+        Assertions.assertTrue(outer.captures.isEmpty());
+
+        // Only an assigned variable is shared through a cell.
+        Assertions.assertFalse(((Stmt.Var) outer.body.get(1)).cell);
+        Assertions.assertTrue(((Stmt.Var) outer.body.get(2)).cell);
+        Assertions.assertEquals(0, outer.cellParams.length);
+    }
+
+    @Test
+    void testTailCalls() {
+        var program = """
+                fun count(n, total) {
+                    if (n == 0) return total;
+                    return count(n - 1, total + 1);
+                }
+                fun isEven(n) { if (n == 0) return true; return isOdd(n - 1); }
+                fun isOdd(n) { if (n == 0) return false; return isEven(n - 1); }
+                class Walker {
+                    walk(n) { if (n == 0) return "done"; return this.walk(n - 1); }
+                }
+                print count(200000, 0);
+                print isEven(200001);
+                print Walker().walk(200000);
+                """;
+        runExpectingOutput(program, "200000\nfalse\ndone\n");
+    }
+
+    @Test
+    void testRecursionDepthAcrossEngines() throws Exception {
+        // Scripts run on a thread with the stack --stack would give them,
+        // and the VM gets the matching frame limit.
+        long stackSize = 16L << 20;
+        int frames = Lox.vmFrames(stackSize);
+        var program = """
+                fun depth(n) { if (n == 0) return 0; return 1 + depth(n - 1); }
+                print depth(%d);
+                """;
+
+        // The script's own frame counts, so the deepest call the VM makes
+        // is depth(frames - 2). The other engines get at least as far.
+        for (Lox.Engine engine : Lox.Engine.values()) {
+            Assertions.assertEquals((frames - 2) + "\n", runOnStack(
+                    program.formatted(frames - 2), engine, stackSize),
+                    "Output of " + engine);
+            Assertions.assertEquals("Stack overflow.", runOnStack(
+                    program.formatted(frames * 10), engine, stackSize),
+                    "Output of " + engine);
+        }
+        Assertions.assertEquals("Stack overflow.", runOnStack(
+                program.formatted(frames - 1), Lox.Engine.VM, stackSize));
+    }
+
+    // Runs the program on a thread with the given stack size. Returns its
+    // output, or the message of the runtime error that stopped it.
+    private static String runOnStack(String program, Lox.Engine engine,
+                                     long stackSize) throws Exception {
+        var stdout = System.out;
+        var stderr = System.err;
+        var data = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        try {
+            var out = new PrintStream(data);
+            System.setOut(out);
+            System.setErr(new PrintStream(err));
+
+            var task = new FutureTask<Void>(() -> {
+                var interpreter = engine == Lox.Engine.JIT
+                        ? new Interpreter(0, out) : new Interpreter(out);
+                var statements = new Parser(new Scanner(program)).parse();
+                new Resolver(interpreter).resolve(statements);
+                switch (engine) {
+                    case INTERPRETER, JIT -> interpreter.interpret(statements);
+                    case VM -> new VM(Lox.vmFrames(stackSize))
+                            .interpret(statements);
+                    case CLOSURE -> new ClosureEngine().interpret(statements);
+                }
+                return null;
+            });
+            var thread = new Thread(null, task, "deep", stackSize);
+            thread.start();
+            task.get();
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            Lox.hadRuntimeError = false;
+        }
+
+        if (err.size() == 0) return data.toString();
+        return err.toString().lines().findFirst().orElse("");
+    }
+
+    @Test
+    void testStackOverflowIsRuntimeError() {
+        var program = """
+                fun forever(n) { return 1 + forever(n); }
+                print "before";
+                print forever(0);
+                print "after";
+                """;
+        runExpectingOutput(program, "before\n");
+    }
+
+    @Test
+    void testSyntaxErrorAfterRunningStatements() {
+        var program = """
+                print "one";
+                var a = 2;
+                print a;
+                print (;
+                print "after";
+                var = 3;
+                """;
+        // Statements before the error have already run. After it, the rest
+        // is only parsed, to report other syntax errors.
+        Assertions.assertEquals(List.of("one\n2\n",
+                        "[line 4] Error at ';': Expect expression.\n" +
+                                "[line 6] Error at '=': Expect variable name.\n"),
+                runPipelined(program));
+    }
+
+    @Test
+    void testRuntimeErrorStopsLaterDeclarations() {
+        var program = """
+                print "before";
+                fun boom() { return nil + 1; }
+                boom();
+                print "after";
+                fun later() {}
+                print later;
+                """;
+        Assertions.assertEquals(List.of("before\n",
+                        "Operands must be two numbers or two strings.\n" +
+                                "[line 2]\n"),
+                runPipelined(program));
+    }
+
+    // Runs the program the way jlox runs a script, declaration by
+    // declaration as it is parsed. Returns its output and its errors.
+    private static List<String> runPipelined(String program) {
+        var stderr = System.err;
+        var interpreter = Lox.interpreter;
+        // Other tests can leave the flags set, which would stop the run.
+        Lox.hadError = false;
+        Lox.hadRuntimeError = false;
+        try {
+            var out = new ByteArrayOutputStream();
+            var err = new ByteArrayOutputStream();
+            System.setErr(new PrintStream(err));
+            Lox.interpreter = new Interpreter(new PrintStream(out));
+            Lox.run(new StringReader(program), null);
+            return List.of(out.toString(), err.toString());
+        } finally {
+            System.setErr(stderr);
+            Lox.interpreter = interpreter;
+            Lox.hadError = false;
+            Lox.hadRuntimeError = false;
+        }
+    }
+
     private static void runExpectingOutput(String program, String expected) {
+        for (Lox.Engine engine : Lox.Engine.values()) {
+            Assertions.assertEquals(expected, run(program, engine, false),
+                    "Output of " + engine);
+            Assertions.assertEquals(expected, run(program, engine, true),
+                    "Optimized output of " + engine);
+        }
+    }
+
+    private static String run(String program, Lox.Engine engine,
+                              boolean optimize) {
         var scanner = new Scanner(program);
         var parser = new Parser(scanner.scanTokens());
-        var interpreter = new Interpreter();
+        var data = new ByteArrayOutputStream();
+        var out = new PrintStream(data);
+        // Compile every function on its first call.
+        var interpreter = engine == Lox.Engine.JIT
+                ? new Interpreter(0, out) : new Interpreter(out);
         var resolver = new Resolver(interpreter);
 
         var stdout = System.out;
         try {
-            var data = new ByteArrayOutputStream();
-            var out = new PrintStream(data);
             System.setOut(out);
 
             List<Stmt> statements = parser.parse();
             resolver.resolve(statements);
-            interpreter.interpret(statements);
-            Assertions.assertEquals(expected, data.toString());
+            if (optimize) statements = new Optimizer().optimize(statements);
+            switch (engine) {
+                case INTERPRETER -> interpreter.interpret(statements);
+                case VM -> new VM().interpret(statements);
+                case CLOSURE -> new ClosureEngine().interpret(statements);
+                case JIT -> interpreter.interpret(statements);
+            }
+            return data.toString();
         } finally {
             System.setOut(stdout);
         }
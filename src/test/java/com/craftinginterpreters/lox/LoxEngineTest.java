@@ -0,0 +1,134 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.vm.InterpretResult;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class LoxEngineTest {
+    @Test
+    void testContextsAreIsolated() {
+        var engine = new LoxEngine();
+        var firstOut = new ByteArrayOutputStream();
+        var secondOut = new ByteArrayOutputStream();
+        var secondErr = new ByteArrayOutputStream();
+        var first = engine.newContext(new PrintStream(firstOut),
+                new PrintStream(new ByteArrayOutputStream()));
+        var second = engine.newContext(new PrintStream(secondOut),
+                new PrintStream(secondErr));
+
+        Assertions.assertEquals(InterpretResult.OK,
+                first.eval("var a = 1; print a;"));
+        Assertions.assertEquals(InterpretResult.OK,
+                first.eval("a = a + 1; print a;"));
+        Assertions.assertEquals(InterpretResult.RUNTIME_ERROR,
+                second.eval("print a;"));
+        Assertions.assertEquals(InterpretResult.COMPILE_ERROR,
+                second.eval("print ;"));
+
+        Assertions.assertEquals("1\n2\n", firstOut.toString());
+        Assertions.assertEquals("", secondOut.toString());
+        Assertions.assertEquals("Undefined variable 'a'.\n[line 1]\n" +
+                        "[line 1] Error at ';': Expect expression.\n",
+                secondErr.toString());
+    }
+
+    @Test
+    void testNativeFunctions() {
+        var engine = new LoxEngine();
+        engine.defineNative("twice", 1, arguments ->
+                2 * (double) arguments.get(0));
+        engine.defineNative("fail", 1, arguments -> {
+            throw new LoxException("Failed with " + arguments.get(0) + ".");
+        });
+
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var context = engine.newContext(new PrintStream(out),
+                new PrintStream(err));
+        context.defineNative("length", 1, arguments ->
+                ((String) arguments.get(0)).length());
+
+        Assertions.assertEquals(InterpretResult.RUNTIME_ERROR, context.eval("""
+                print twice(21);
+                print length("ab" + "cd");
+                fail("oops");
+                print "unreachable";
+                """));
+        Assertions.assertEquals("42\n4\n", out.toString());
+        Assertions.assertEquals("Failed with oops.\n[line 3]\n",
+                err.toString());
+    }
+
+    @Test
+    void testNativeReenteringItsContext() {
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var context = new LoxEngine().newContext(new PrintStream(out),
+                new PrintStream(err));
+        context.defineNative("nested", 0, arguments ->
+                context.eval("var zz = 42; print zz;"));
+
+        Assertions.assertEquals(InterpretResult.RUNTIME_ERROR, context.eval("""
+                fun f(a, b) {
+                    var c = a + b;
+                    print c;
+                    nested();
+                    print "unreachable";
+                }
+                f(1, 2);
+                """));
+        Assertions.assertEquals("3\n", out.toString());
+        Assertions.assertEquals(
+                "Can't run a script in the context that is running it.\n" +
+                        "[line 4]\n", err.toString());
+
+        // The context is still usable, and the nested script never ran.
+        Assertions.assertEquals(InterpretResult.RUNTIME_ERROR,
+                context.eval("print zz;"));
+        Assertions.assertEquals(InterpretResult.OK,
+                context.eval("print 1 + 1;"));
+        Assertions.assertEquals("3\n2\n", out.toString());
+    }
+
+    @Test
+    void testConcurrentContexts() throws Exception {
+        var engine = new LoxEngine(true);
+        var program = """
+                fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+                var total = 0;
+                for (var i = 0; i < 20; i = i + 1) total = total + fib(15);
+                print id + total;
+                """;
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                int id = i;
+                results.add(executor.submit(() -> {
+                    var out = new ByteArrayOutputStream();
+                    var context = engine.newContext(new PrintStream(out),
+                            System.err);
+                    context.eval("var id = " + id + ";");
+                    context.eval(program);
+                    return out.toString();
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                Assertions.assertEquals((i + 12200) + "\n",
+                        results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.vm.InterpretResult;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+class LoxExecutorTest {
+    @Test
+    void testRunsScriptsConcurrently() throws Exception {
+        var engine = new LoxEngine();
+        engine.defineNative("pause", 1, arguments -> {
+            try {
+                Thread.sleep(((Double) arguments.get(0)).longValue());
+            } catch (InterruptedException e) {
+                throw new LoxException("Interrupted.");
+            }
+            return null;
+        });
+
+        try (var executor = new LoxExecutor(engine, 100, Duration.ofMinutes(1))) {
+            List<CompletableFuture<LoxExecutor.Result>> results =
+                    new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                results.add(executor.submit(
+                        "pause(10); print " + i + " * 2;"));
+            }
+            var failing = executor.submit("print 1; print nil + 1;");
+
+            for (int i = 0; i < results.size(); i++) {
+                var result = results.get(i).get();
+                Assertions.assertEquals(InterpretResult.OK, result.status());
+                Assertions.assertEquals(i * 2 + "\n", result.output());
+            }
+
+            var result = failing.get();
+            Assertions.assertEquals(InterpretResult.RUNTIME_ERROR,
+                    result.status());
+            Assertions.assertEquals("1\n", result.output());
+            Assertions.assertEquals(
+                    "Operands must be two numbers or two strings.\n[line 1]\n",
+                    result.errors());
+
+            var statistics = executor.statistics();
+            Assertions.assertEquals(1001, statistics.submitted());
+            Assertions.assertEquals(1001, statistics.completed());
+            Assertions.assertEquals(0, statistics.running());
+        }
+    }
+
+    @Test
+    void testTimeout() throws Exception {
+        try (var executor = new LoxExecutor(new LoxEngine(true), 4,
+                Duration.ofMillis(100))) {
+            var looping = executor.submit("while (true) {}");
+            var recursing = executor.submit(
+                    "fun spin(n) { return spin(n + 1); } spin(0);");
+            var quick = executor.submit("print \"done\";");
+
+            Assertions.assertEquals("done\n", quick.get().output());
+            for (var future : List.of(looping, recursing)) {
+                var error = Assertions.assertThrows(ExecutionException.class,
+                        future::get);
+                Assertions.assertInstanceOf(TimeoutException.class,
+                        error.getCause());
+            }
+            Assertions.assertEquals(2, executor.statistics().timedOut());
+        }
+    }
+
+    @Test
+    void testTimeoutInBlockingNative() throws Exception {
+        var engine = new LoxEngine();
+        engine.defineNative("pause", 1, arguments -> {
+            try {
+                Thread.sleep(((Double) arguments.get(0)).longValue());
+            } catch (InterruptedException e) {
+                throw new LoxException("Interrupted.");
+            }
+            return null;
+        });
+
+        try (var executor = new LoxExecutor(engine, 4,
+                Duration.ofMillis(100))) {
+            var future = executor.submit("pause(10000);");
+            var error = Assertions.assertThrows(ExecutionException.class,
+                    future::get);
+            Assertions.assertInstanceOf(TimeoutException.class,
+                    error.getCause());
+            Assertions.assertEquals(1, executor.statistics().timedOut());
+            Assertions.assertEquals(0, executor.statistics().completed());
+        }
+    }
+
+    @Test
+    void testStatistics() throws Exception {
+        var executor = new LoxExecutor(new LoxEngine(), 4, Duration.ofMinutes(1));
+        // Time before the first submission doesn't count against throughput.
+        Thread.sleep(1000);
+        for (int i = 0; i < 20; i++) executor.submit("print " + i + ";").get();
+        executor.close();
+
+        var statistics = executor.statistics();
+        Assertions.assertEquals(20, statistics.completed());
+        Assertions.assertTrue(statistics.scriptsPerSecond() > 25,
+                "Throughput " + statistics.scriptsPerSecond());
+        Assertions.assertTrue(statistics.maxLatency().compareTo(
+                statistics.meanLatency()) >= 0);
+
+        Assertions.assertThrows(RejectedExecutionException.class,
+                () -> executor.submit("print 1;"));
+        Assertions.assertEquals(20, executor.statistics().submitted());
+    }
+}
@@ -3,6 +3,8 @@ package com.craftinginterpreters.lox;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 class ParserTest {
@@ -30,6 +32,37 @@ class ParserTest {
         }
     }
 
+    @Test
+    void testDeclarationAtATime() {
+        var parser = new Parser(new Scanner("var a = 1; print a + 1; print;"));
+
+        Assertions.assertInstanceOf(Stmt.Var.class, parser.nextDeclaration());
+        Assertions.assertInstanceOf(Stmt.Print.class, parser.nextDeclaration());
+        Assertions.assertFalse(parser.hadError());
+
+        Assertions.assertNull(parser.nextDeclaration());
+        Assertions.assertTrue(parser.hadError());
+    }
+
+    @Test
+    void testSplitAtTopLevelDeclarations() {
+        var source = """
+                fun a() { print "{"; }
+                // fun b() {}
+                class C { m() { fun inner() {} } }
+                var s = "
+                fun d() {}";
+                fun e() {}
+                """;
+        var bytes = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+
+        var pieces = ParallelParser.split(bytes, 1);
+
+        Assertions.assertEquals(List.of(1, 3, 6), pieces.stream()
+                .map(ParallelParser.Piece::line).toList());
+        Assertions.assertEquals(source.indexOf("fun e"), pieces.get(2).start());
+    }
+
     private String parseExpression(String expr) {
         var lexer = new Scanner(expr);
         var parser = new Parser(lexer.scanTokens());
@@ -52,6 +85,11 @@ class ParserTest {
                     return stmt.expression;
                 }
 
+                @Override
+                public Expr visitForStmt(Stmt.For stmt) {
+                    throw new AssertionError("Should not reach here");
+                }
+
                 @Override
                 public Expr visitFunctionStmt(Stmt.Function stmt) {
                     throw new AssertionError("Should not reach here");
@@ -46,6 +46,40 @@ public class ScannerTest {
         ));
     }
 
+    @Test
+    void testKeywordsAndNearKeywords() {
+        var scanner = new Scanner("for fort f this th true 0.1 12");
+        var tokens = scanner.scanTokens();
+
+        assertThat(tokens).usingRecursiveComparison().isEqualTo(List.of(
+                new Token(FOR, "for", null, 1, Symbol.of("for")),
+                new Token(IDENTIFIER, "fort", null, 1, Symbol.of("fort")),
+                new Token(IDENTIFIER, "f", null, 1, Symbol.of("f")),
+                new Token(THIS, "this", null, 1, Symbol.THIS),
+                new Token(IDENTIFIER, "th", null, 1, Symbol.of("th")),
+                new Token(TRUE, "true", null, 1, Symbol.of("true")),
+                new Token(NUMBER, "0.1", 0.1, 1),
+                new Token(NUMBER, "12", 12.0, 1),
+                new Token(EOF, "", null, 1)
+        ));
+    }
+
+    @Test
+    void testLexemesAcrossChunks() {
+        var padding = " ".repeat(8190);
+        var text = "x".repeat(20000);
+        var source = padding + "123.5 \"" + text + "\"";
+
+        var scanner = new Scanner(source);
+        var tokens = scanner.scanTokens();
+
+        assertThat(tokens).usingRecursiveComparison().isEqualTo(List.of(
+                new Token(NUMBER, "123.5", 123.5, 1),
+                new Token(STRING, "\"" + text + "\"", text, 1),
+                new Token(EOF, "", null, 1)
+        ));
+    }
+
     @Test
     void testSampleFiles() throws IOException {
         var srcs = Paths.get("src/main/lox");
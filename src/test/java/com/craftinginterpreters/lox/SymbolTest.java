@@ -0,0 +1,66 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.vm.InterpretResult;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+class SymbolTest {
+    @Test
+    void testSameNameSameSymbolAcrossScanners() {
+        var first = new Scanner("var total = this.init;").scanTokens();
+        var second = new Scanner("total(init) and this").scanTokens();
+
+        var total = first.get(1).symbol;
+        Assertions.assertSame(total, second.get(0).symbol);
+        Assertions.assertSame(total, Symbol.of("total"));
+        Assertions.assertSame(Symbol.INIT, first.get(5).symbol);
+        Assertions.assertSame(Symbol.INIT, second.get(2).symbol);
+        Assertions.assertSame(Symbol.THIS, first.get(3).symbol);
+        Assertions.assertSame(Symbol.THIS, second.get(5).symbol);
+        Assertions.assertNotSame(total, Symbol.of("totals"));
+    }
+
+    @Test
+    void testGlobalSlotsArePerTable() {
+        // Names interned for other programs take no room in a new table.
+        for (int i = 0; i < 1000; i++) Symbol.of("unrelated" + i);
+
+        var globals = new Globals();
+        var a = globals.slot(Symbol.of("a"));
+        var b = globals.slot(Symbol.of("b"));
+        Assertions.assertEquals(0, a);
+        Assertions.assertEquals(1, b);
+        Assertions.assertEquals(a, globals.slot(Symbol.of("a")));
+
+        globals.define("a", 1.0);
+        Assertions.assertEquals(1.0,
+                globals.get(a, new Scanner("a").scanTokens().get(0)));
+    }
+
+    @Test
+    void testLookupAcrossScripts() {
+        // Each eval scans separately, so fields, methods and globals are
+        // only found if the names resolve to the same symbols.
+        var out = new ByteArrayOutputStream();
+        var context = new LoxEngine().newContext(new PrintStream(out),
+                System.err);
+        Assertions.assertEquals(InterpretResult.OK, context.eval("""
+                class Point {
+                    init(x) { this.x = x; }
+                    twice() { return this.x * 2; }
+                }
+                var origin = Point(1);
+                origin.label = "o";
+                """));
+        Assertions.assertEquals(InterpretResult.OK, context.eval("""
+                print origin.x;
+                print origin.label;
+                print origin.twice();
+                print Point(4).twice();
+                """));
+        Assertions.assertEquals("1\no\n2\n8\n", out.toString());
+    }
+}